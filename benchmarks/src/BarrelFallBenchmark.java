@@ -0,0 +1,31 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BarrelFallBenchmark {
+    @Param({"5", "100", "10000", "100000"})
+    public int count;
+
+    private EntityStore store;
+    private final DropSystem drops = new DropSystem();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        // the stop line is far enough away that every barrel keeps falling for the whole iteration
+        store = new EntityStore(count);
+        for (int i = 0; i < count; i++) {
+            Barrel.add(store, i, i % 1024, 1e300, true, 0, i);
+        }
+    }
+
+    @Benchmark
+    public void drop() {
+        drops.run(store);
+    }
+}
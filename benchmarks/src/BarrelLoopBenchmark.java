@@ -0,0 +1,32 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BarrelLoopBenchmark {
+    @Param({"5", "100", "10000", "100000"})
+    public int count;
+
+    private GameWorld world;
+    private final ScriptedInput idle = new ScriptedInput(new int[0]);
+
+    @Setup
+    public void setup() {
+        world = new GameWorld(BenchmarkLevels.withBarrels(count));
+    }
+
+    @Benchmark
+    public boolean update() {
+        idle.advance();
+        boolean running = world.update(idle);
+        if (!running) {
+            world.reset();
+        }
+        return running;
+    }
+}
@@ -0,0 +1,96 @@
+import bagel.Keys;
+import bagel.util.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+
+//BenchmarkLevels Class
+// Builds the configured level padded out to a given entity count. The time limit is lifted,
+// Donkey Kong throws nothing, and extra entities are placed where they never interact with Mario
+// (who stays on the bottom floor left of x = 400), so every benchmark measures a steady state.
+class BenchmarkLevels {
+    public static Properties gameProps() {
+        Properties props = IOUtils.readPropertiesFile("res/app.properties");
+        props.setProperty("gamePlay.maxFrames", Integer.toString(Integer.MAX_VALUE));
+        props.setProperty("donkey.throw.interval", "0");
+        return props;
+    }
+
+    public static GameConfig config() {
+        return GameConfig.from(gameProps());
+    }
+
+    public static GameConfig withBarrels(int count) {
+        Properties props = gameProps();
+        Random random = new Random(42);
+        props.setProperty("barrel.count", Integer.toString(count));
+        for (int i = 1; i <= count; i++) {
+            // the upper floors right of the first ladder, out of Mario's reach
+            double x = 400 + random.nextInt(600);
+            double y = 100 + random.nextInt(460);
+            props.setProperty("barrel." + i, x + "," + y);
+        }
+        return GameConfig.from(props);
+    }
+
+    public static List<Platform> platforms(int count) {
+        List<Platform> platforms = new ArrayList<>();
+        for (String part : gameProps().getProperty("platforms").split(";")) {
+            String[] coords = part.split(",");
+            if (coords.length == 2) {
+                platforms.add(new Platform(new Point(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]))));
+            }
+        }
+        for (int i = platforms.size(); i < count; i++) {
+            platforms.add(new Platform(new Point(i * 10.0, -1000.0 - i)));
+        }
+        return platforms;
+    }
+
+    public static List<Ladder> ladders(int count) {
+        Properties props = gameProps();
+        List<Ladder> ladders = new ArrayList<>();
+        int configured = GameUtils.getIntProperty(props, "ladder.count", 0);
+        for (int i = 1; i <= configured && ladders.size() < count; i++) {
+            String[] coords = props.getProperty("ladder." + i).split(",");
+            ladders.add(new Ladder(new Point(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]))));
+        }
+        for (int i = ladders.size(); i < count; i++) {
+            ladders.add(new Ladder(new Point(i * 10.0, -1000.0 - i)));
+        }
+        return ladders;
+    }
+}
+
+
+//CyclingInput Class
+// Walks right then left and jumps now and then, looping forever.
+class CyclingInput implements InputSource {
+    private static final int PERIOD = 120;
+    private int frame;
+    private int current;
+    private int previous;
+
+    public void advance() {
+        frame = (frame + 1) % PERIOD;
+        previous = current;
+        current = frame < PERIOD / 2 ? KeyMask.bit(Keys.RIGHT) : KeyMask.bit(Keys.LEFT);
+        if (frame % 40 == 0) {
+            current |= KeyMask.bit(Keys.SPACE);
+        }
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return (current & KeyMask.bit(key)) != 0;
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        int bit = KeyMask.bit(key);
+        return (current & bit) != 0 && (previous & bit) == 0;
+    }
+}
@@ -0,0 +1,56 @@
+import bagel.util.Point;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+    @Param({"5", "100", "10000", "100000"})
+    public int count;
+
+    private double[] xs;
+    private double[] ys;
+    private Point[] points;
+    private final Point mario = new Point(500, 400);
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        xs = new double[count];
+        ys = new double[count];
+        points = new Point[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = random.nextInt(1024);
+            ys[i] = random.nextInt(768);
+            points[i] = new Point(xs[i], ys[i]);
+        }
+    }
+
+    @Benchmark
+    public int pointOverload() {
+        int hits = 0;
+        for (int i = 0; i < count; i++) {
+            if (GameUtils.isColliding(mario, 32, 32, points[i], 35, 30)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int primitiveOverload() {
+        int hits = 0;
+        for (int i = 0; i < count; i++) {
+            if (GameUtils.isColliding(mario.x, mario.y, 32, 32, xs[i], ys[i], 35, 30)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,42 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarioUpdateBenchmark {
+    @Param({"5", "100", "10000", "100000"})
+    public int count;
+
+    private Mario mario;
+    private final ClimberSystem climbers = new ClimberSystem();
+    private final DropSystem drops = new DropSystem();
+    private EntityStore store;
+    private GeometryIndex platforms;
+    private GeometryIndex ladders;
+    private final CyclingInput input = new CyclingInput();
+
+    @Setup
+    public void setup() {
+        store = new EntityStore(1);
+        mario = new Mario(store, BenchmarkLevels.config());
+        platforms = GeometryIndex.ofPlatforms(BenchmarkLevels.platforms(count));
+        ladders = GeometryIndex.ofLadders(BenchmarkLevels.ladders(count));
+        // let Mario finish dropping in before measuring
+        for (int i = 0; i < 200; i++) {
+            climbers.run(store, input, platforms, ladders);
+            drops.run(store);
+        }
+    }
+
+    @Benchmark
+    public double update() {
+        input.advance();
+        climbers.run(store, input, platforms, ladders);
+        return mario.getY();
+    }
+}
@@ -0,0 +1,32 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoreBenchmark {
+    @Param({"5", "100", "10000", "100000"})
+    public int count;
+
+    private final ScoreManager scoreManager = new ScoreManager();
+    private Mario mario;
+    private GameWorld world;
+
+    @Setup
+    public void setup() {
+        world = new GameWorld(BenchmarkLevels.withBarrels(count));
+        mario = world.getMario();
+    }
+
+    @Benchmark
+    public int checkAndAddBarrelJumped() {
+        for (int i = 0; i < world.getBarrelCount(); i++) {
+            scoreManager.checkAndAddBarrelJumped(mario, world.getBarrel(i));
+        }
+        return scoreManager.getBarrelJumped();
+    }
+}
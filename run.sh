@@ -0,0 +1,10 @@
+#!/bin/sh
+# Starts the jar built by `mvn -Pcds package`, with its class-data-sharing archive if there is one.
+# Run from anywhere; the game reads res/ relative to the repository root.
+cd "$(dirname "$0")" || exit 1
+JAR=target/DonkeyKong-1.0-SNAPSHOT.jar
+ARCHIVE=target/dk.jsa
+if [ -f "$ARCHIVE" ]; then
+    exec java -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto -jar "$JAR" "$@"
+fi
+exec java -jar "$JAR" "$@"
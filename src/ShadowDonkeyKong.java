@@ -1,4 +1,17 @@
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
 import bagel.*;
 import bagel.util.Point;
@@ -6,93 +19,139 @@ import bagel.util.Point;
 import java.util.*;
 import java.util.Properties;
 import java.util.List;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.lwjgl.openal.AL;
+import org.lwjgl.openal.AL10;
+import org.lwjgl.openal.ALC;
+import org.lwjgl.openal.ALC10;
+import org.lwjgl.openal.ALCCapabilities;
 
 
 public class ShadowDonkeyKong extends AbstractGame {
-    private final Properties gameProps;
+    private final ConfigWatcher configWatcher;
     private final Properties messageProps;
 
     private GameState state = GameState.HOME;
-    private final Font titleFont;
-    private final Font promptFont;
-    private final Font scoreFont;
-    private final Image background;
-
-    private final Mario mario;
-    private final DonkeyKong donkey;
-    private final Hammer hammer;
-    private final List<Barrel> barrels = new ArrayList<>();
-    private final List<Platform> platforms = new ArrayList<>();
-    private final List<Ladder> ladders = new ArrayList<>();
-
-    private final ScoreManager scoreManager = new ScoreManager();
-    private int currentFrame = 0;
-
-    public ShadowDonkeyKong(Properties gameProps, Properties messageProps) {
-        super(GameUtils.getIntProperty(gameProps, "window.width", 1024),
-                GameUtils.getIntProperty(gameProps, "window.height", 768),
+    private GameConfig config;
+    private Font titleFont;
+    private Font promptFont;
+    private Font scoreFont;
+    private Font statusFont;
+    private Font endScoreFont;
+    private Image background;
+
+    private final GameWorld world;
+    private final FutureTask<TextureAtlas> atlas;
+    private WorldRenderer renderer;
+    private final BagelInputSource inputSource = new BagelInputSource();
+    private final SimulationClock clock;
+    private RewindBuffer rewind;
+    private GameConfig rewindConfig;
+
+    private final ScoreStore scoreStore;
+    private boolean showProfile;
+    private String[] profileLines;
+    private int profileAge;
+    private String rankLine;
+    private String[] leaderboardLines = new String[0];
+
+    // Screen text; see TextLabel.
+    private final TextLabel titleLabel = new TextLabel();
+    private final TextLabel promptLabel = new TextLabel();
+    private final TextLabel scoreLabel = new TextLabel();
+    private final TextLabel timeLabel = new TextLabel();
+    private final TextLabel statusLabel = new TextLabel();
+    private final TextLabel endScoreLabel = new TextLabel();
+    private final TextLabel rankLabel = new TextLabel();
+    private final TextLabel leaderboardTitleLabel = new TextLabel();
+    private final TextLabel continueLabel = new TextLabel();
+    private TextLabel[] leaderboardLabels = new TextLabel[0];
+    private TextLabel[] profileLabels = new TextLabel[0];
+
+    private String recordPrefix;
+    private int recordedGames;
+    private InputRecorder recorder;
+    private String replayFile;
+    private InputReplay replay;
+
+    public ShadowDonkeyKong(ConfigWatcher configWatcher, Properties messageProps, ScoreStore scoreStore) {
+        super(configWatcher.get().getWindowWidth(),
+                configWatcher.get().getWindowHeight(),
                 messageProps.getProperty("home.title"));
 
-        this.gameProps = gameProps;
+        this.configWatcher = configWatcher;
         this.messageProps = messageProps;
+        this.scoreStore = scoreStore;
+
+        // the sprite atlas is packed in the background while the home screen is up
+        atlas = WorldRenderer.loadAtlas();
+        applyConfig(configWatcher.get());
+        world = new GameWorld(config, Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "chunk-loader");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        clock = new SimulationClock(config.getTickRate(), config.getMaxCatchUpTicks());
+        rewind = newRewindBuffer(config);
+        rewindConfig = config;
+    }
 
-        background = new Image(gameProps.getProperty("backgroundImage"));
-        titleFont = new Font(gameProps.getProperty("font"),
-                GameUtils.getIntProperty(gameProps, "home.title.fontSize", 64));
-        promptFont = new Font(gameProps.getProperty("font"),
-                GameUtils.getIntProperty(gameProps, "home.prompt.fontSize", 24));
-        scoreFont = new Font(gameProps.getProperty("font"),
-                GameUtils.getIntProperty(gameProps, "gamePlay.score.fontSize", 20));
-
-        mario = new Mario(gameProps);
-        donkey = new DonkeyKong(gameProps);
-        hammer = new Hammer(gameProps);
-
-        int barrelCount = GameUtils.getIntProperty(gameProps, "barrel.count", 0);
-        for (int i = 1; i <= barrelCount; i++) {
-            String key = "barrel." + i;
-            if (gameProps.containsKey(key)) {
-                String[] coords = gameProps.getProperty(key).split(",");
-                if (coords.length == 2) {
-                    double x = Double.parseDouble(coords[0]);
-                    double y = Double.parseDouble(coords[1]);
-                    boolean shouldFall = (i == 3 || i == 4);
-                    double startY = y;
-
-                    if (i == 3) startY = 300;
-                    if (i == 4) startY = 250;
-
-                    barrels.add(new Barrel(new Point(x, y), shouldFall, startY));
-                }
-            }
-        }
-
-
-        int ladderCount = GameUtils.getIntProperty(gameProps, "ladder.count", 0);
-        for (int i = 1; i <= ladderCount; i++) {
-            String key = "ladder." + i;
-            if (gameProps.containsKey(key)) {
-                String[] coords = gameProps.getProperty(key).split(",");
-                if (coords.length == 2) {
-                    double x = Double.parseDouble(coords[0]);
-                    double y = Double.parseDouble(coords[1]);
-                    ladders.add(new Ladder(new Point(x, y)));
-                }
-            }
-        }
+    private static RewindBuffer newRewindBuffer(GameConfig config) {
+        return new RewindBuffer(config.getRewindSeconds() * config.getTickRate(), config.getRewindBufferBytes());
+    }
 
-        if (gameProps.containsKey("platforms")) {
-            String[] parts = gameProps.getProperty("platforms").split(";");
-            for (String part : parts) {
-                String[] coords = part.split(",");
-                if (coords.length == 2) {
-                    double x = Double.parseDouble(coords[0]);
-                    double y = Double.parseDouble(coords[1]);
-                    platforms.add(new Platform(new Point(x, y)));
-                }
-            }
+    private void applyConfig(GameConfig config) {
+        GameConfig previous = this.config;
+        this.config = config;
+        background = AssetRegistry.acquireImage(config.getBackgroundImage());
+        titleFont = AssetRegistry.acquireFont(config.getFontFile(), config.getHomeTitleFontSize());
+        promptFont = AssetRegistry.acquireFont(config.getFontFile(), config.getHomePromptFontSize());
+        scoreFont = AssetRegistry.acquireFont(config.getFontFile(), config.getScoreFontSize());
+        statusFont = AssetRegistry.acquireFont(config.getFontFile(), config.getGameEndStatusFontSize());
+        endScoreFont = AssetRegistry.acquireFont(config.getFontFile(), config.getGameEndScoresFontSize());
+
+        // release after acquiring so assets shared by both configs are never reloaded
+        if (previous != null) {
+            AssetRegistry.releaseImage(previous.getBackgroundImage());
+            AssetRegistry.releaseFont(previous.getFontFile(), previous.getHomeTitleFontSize());
+            AssetRegistry.releaseFont(previous.getFontFile(), previous.getHomePromptFontSize());
+            AssetRegistry.releaseFont(previous.getFontFile(), previous.getScoreFontSize());
+            AssetRegistry.releaseFont(previous.getFontFile(), previous.getGameEndStatusFontSize());
+            AssetRegistry.releaseFont(previous.getFontFile(), previous.getGameEndScoresFontSize());
         }
     }
 
@@ -101,12 +160,33 @@ public class ShadowDonkeyKong extends AbstractGame {
         if (input.wasPressed(Keys.ESCAPE)) {
             Window.close();
         }
+        if (FrameProfiler.ENABLED && input.wasPressed(Keys.TAB)) {
+            showProfile = !showProfile;
+        }
+
+        // pick up a reloaded app.properties; the level itself changes on the next reset
+        GameConfig latest = configWatcher.get();
+        if (latest != config) {
+            applyConfig(latest);
+        }
 
         switch (state) {
             case HOME:
                 drawHomeScreen();
+                createRenderer(false);
                 if (input.wasPressed(Keys.ENTER)) {
-                    resetGame();
+                    createRenderer(true);
+                    world.reset(config);
+                    clock.configure(config.getTickRate(), config.getMaxCatchUpTicks());
+                    clock.reset(System.nanoTime());
+                    inputSource.clearPresses();
+                    if (rewindConfig != config) {
+                        rewind = newRewindBuffer(config);
+                        rewindConfig = config;
+                    }
+                    rewind.clear();
+                    rewind.push(world);
+                    startRecordingOrReplay();
                     state = GameState.GAMEPLAY;
                 }
 
@@ -118,685 +198,6784 @@ public class ShadowDonkeyKong extends AbstractGame {
                 drawGameOverScreen();
                 if (input.wasPressed(Keys.SPACE)) {
                     state = GameState.HOME;
-                    currentFrame = 0;
                 }
                 break;
         }
+        StartupTimer.firstFrame();
+    }
 
+    // The renderer needs the atlas. It's made as soon as the atlas is ready, and only waited
+    // for if ENTER is pressed before then.
+    private void createRenderer(boolean wait) {
+        if (renderer == null && (wait || atlas.isDone())) {
+            renderer = new WorldRenderer(config.getWindowWidth(), config.getWindowHeight(), atlas);
+        }
     }
 
     private void drawHomeScreen() {
         background.draw(Window.getWidth() / 2.0, Window.getHeight() / 2.0);
-        titleFont.drawString(
-                messageProps.getProperty("home.title"),
-                Window.getWidth() / 2.0 - titleFont.getWidth(messageProps.getProperty("home.title")) / 2,
-                GameUtils.getIntProperty(gameProps, "home.title.y", 384)
-        );
-        promptFont.drawString(
-                messageProps.getProperty("home.prompt"),
-                Window.getWidth() / 2.0 - promptFont.getWidth(messageProps.getProperty("home.prompt")) / 2,
-                GameUtils.getIntProperty(gameProps, "home.prompt.y", 550)
-        );
-    }
-
-    private void resetGame() {
-        currentFrame = 0;
-        scoreManager.reset();
+        titleLabel.set(titleFont, messageProps.getProperty("home.title"))
+                .drawCentred(Window.getWidth() / 2.0, config.getHomeTitleY());
+        promptLabel.set(promptFont, messageProps.getProperty("home.prompt"))
+                .drawCentred(Window.getWidth() / 2.0, config.getHomePromptY());
+    }
 
-        mario.reset(gameProps);
-        donkey.reset(gameProps);
+    private void updateGameplay(Input input) {
+        long frameStart = FrameProfiler.start();
+        inputSource.capture(input);
+        int ticks = clock.advance(System.nanoTime());
+        for (int i = 0; i < ticks; i++) {
+            // holding R steps back one tick per tick; recordings can't follow a rewind, so it's off then
+            if (input.isDown(Keys.R) && recorder == null && replay == null) {
+                long t = FrameProfiler.start();
+                rewind.stepBack(world);
+                FrameProfiler.end(FrameProfiler.SNAPSHOT, t);
+                inputSource.clearPresses();
+                continue;
+            }
+            InputSource tickInput = inputSource;
+            if (replay != null) {
+                replay.advance();
+                tickInput = replay;
+            }
+            record(tickInput);
+            boolean running = world.update(tickInput);
+            inputSource.clearPresses();
+            if (!running) {
+                stopRecording();
+                recordScore();
+                state = GameState.GAME_OVER;
+                return;
+            }
+            long t = FrameProfiler.start();
+            rewind.push(world);
+            FrameProfiler.end(FrameProfiler.SNAPSHOT, t);
+        }
 
-        hammer.reset(gameProps);
-        barrels.clear();
+        long t = FrameProfiler.start();
+        background.draw(Window.getWidth() / 2.0, Window.getHeight() / 2.0);
+        FrameProfiler.end(FrameProfiler.BACKGROUND, t);
+        renderer.render(world, clock.getAlpha());
+        t = FrameProfiler.start();
+        drawHUD();
+        FrameProfiler.end(FrameProfiler.HUD, t);
+        FrameProfiler.end(FrameProfiler.FRAME, frameStart);
+        FrameProfiler.sampleGc();
+    }
 
-        int barrelCount = GameUtils.getIntProperty(gameProps, "barrel.count", 0);
-        for (int i = 1; i <= barrelCount; i++) {
-            String key = "barrel." + i;
-            if (gameProps.containsKey(key)) {
-                String[] coords = gameProps.getProperty(key).split(",");
-                if (coords.length == 2) {
-                    double x = Double.parseDouble(coords[0]);
-                    double y = Double.parseDouble(coords[1]);
+    // Logs the finished game and builds the leaderboard text once, rather than on every frame.
+    private void recordScore() {
+        rankLine = null;
+        leaderboardLines = new String[0];
+        if (scoreStore == null) {
+            return;
+        }
+        int score = world.getScoreManager().getFinalScore();
+        try {
+            scoreStore.append(score, world.isWon(), world.getCurrentFrame());
+        } catch (IOException ex) {
+            System.err.println("Could not save score: " + ex);
+        }
+        rankLine = messageProps.getProperty("gameEnd.rank") + " " + scoreStore.rank(score) + " / " + scoreStore.size();
+        int[] top = scoreStore.top(config.getLeaderboardSize());
+        leaderboardLines = new String[top.length];
+        if (leaderboardLabels.length < top.length) {
+            leaderboardLabels = labels(top.length);
+        }
+        for (int i = 0; i < top.length; i++) {
+            leaderboardLines[i] = (i + 1) + ". " + top[i];
+        }
+    }
 
-                    boolean shouldFall = (i == 3 || i == 4);
-                    double startY = y; // default to stopY
+    // Each game is recorded to <prefix>-<n>.dkr when recording is on.
+    public void recordTo(String prefix) {
+        this.recordPrefix = prefix;
+    }
 
-                    if (i == 3) startY = 300;
-                    if (i == 4) startY = 250;
+    // Games take their input from the recording instead of the keyboard.
+    public void replayFrom(String file) {
+        this.replayFile = file;
+    }
 
-                    barrels.add(new Barrel(new Point(x, y), shouldFall, startY));
+    private void startRecordingOrReplay() {
+        try {
+            if (replayFile != null) {
+                replay = InputReplay.open(Paths.get(replayFile));
+                if (replay.getTickRate() != config.getTickRate()) {
+                    System.err.println("Recording was made at " + replay.getTickRate() + " ticks/s; replay may diverge");
                 }
             }
+            if (recordPrefix != null) {
+                recordedGames++;
+                recorder = new InputRecorder(Paths.get(recordPrefix + "-" + recordedGames + ".dkr"), config.getTickRate());
+            }
+        } catch (IOException ex) {
+            System.err.println("Input recording/replay disabled: " + ex);
+            replay = null;
+            recorder = null;
+        }
+    }
+
+    private void record(InputSource tickInput) {
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.record(tickInput);
+        } catch (IOException ex) {
+            System.err.println("Stopped recording: " + ex);
+            stopRecording();
+        }
+    }
+
+    private void stopRecording() {
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                System.err.println("Could not finish recording: " + ex);
+            }
+            recorder = null;
         }
+    }
 
+    private void drawHUD() {
+        int scoreX = config.getScoreX();
+        int scoreY = config.getScoreY();
+
+        scoreLabel.set(scoreFont, "Score", world.getScoreManager().getFinalScore()).draw(scoreX, scoreY);
+        timeLabel.set(scoreFont, "Time Left", world.getRemainingSeconds()).draw(scoreX, scoreY + 30);
+
+        if (showProfile) {
+            // rebuilding the text every frame would show up in the very numbers it reports
+            if (profileLines == null || ++profileAge >= 30) {
+                profileLines = FrameProfiler.overlayLines();
+                profileAge = 0;
+                if (profileLabels.length < profileLines.length) {
+                    profileLabels = labels(profileLines.length);
+                }
+            }
+            for (int i = 0; i < profileLines.length; i++) {
+                profileLabels[i].set(scoreFont, profileLines[i]).draw(Window.getWidth() - 420, scoreY + i * 24);
+            }
+        }
     }
 
+    private static TextLabel[] labels(int count) {
+        TextLabel[] labels = new TextLabel[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = new TextLabel();
+        }
+        return labels;
+    }
 
-    private void updateGameplay(Input input) {
+    private void drawGameOverScreen() {
         background.draw(Window.getWidth() / 2.0, Window.getHeight() / 2.0);
 
-        for (Platform p : platforms) p.render();
-        for (Ladder l : ladders) l.render();
+        String status = world.getMario().hasHammer() ? messageProps.getProperty("gameEnd.won") : messageProps.getProperty("gameEnd.lost");
+        int centerX = Window.getWidth() / 2;
 
-        mario.update(input, platforms, ladders);
+        statusLabel.set(statusFont, status).drawCentred(centerX, config.getGameEndStatusY());
 
-        donkey.update();
-        hammer.update();
+        endScoreLabel.set(endScoreFont, messageProps.getProperty("gameEnd.score"), world.getScoreManager().getFinalScore())
+                .drawCentred(centerX, config.getGameEndStatusY() + 60);
 
-        mario.render();
-        donkey.render();
-        hammer.render();
+        if (rankLine != null) {
+            rankLabel.set(endScoreFont, rankLine).drawCentred(centerX, config.getGameEndScoresY() + 40);
+            leaderboardTitleLabel.set(endScoreFont, messageProps.getProperty("gameEnd.leaderboard"))
+                    .drawCentred(centerX, config.getGameEndScoresY() + 80);
+            for (int i = 0; i < leaderboardLines.length; i++) {
+                leaderboardLabels[i].set(endScoreFont, leaderboardLines[i])
+                        .drawCentred(centerX, config.getGameEndScoresY() + 110 + i * 30);
+            }
+        }
 
-        Iterator<Barrel> it = barrels.iterator();
-        while (it.hasNext()) {
-            Barrel barrel = it.next();
-            barrel.update();
-            barrel.render();
-            scoreManager.checkAndAddBarrelJumped(mario, barrel);
+        continueLabel.set(endScoreFont, messageProps.getProperty("gameEnd.continue"))
+                .drawCentred(centerX, Window.getHeight() - 100);
+    }
 
-            if (!mario.hasHammer() && GameUtils.isColliding(mario.getPosition(), 32, 32, barrel.getPosition(), barrel.getWidth(), barrel.getHeight())) {
-                state = GameState.GAME_OVER;
-                return;
+
+    public static void main(String[] args) {
+        StartupTimer.mainStarted();
+        // start decoding sprites before the window opens; the messages are read alongside the config
+        AssetLoader.preload(WorldRenderer.SPRITES);
+        FutureTask<Properties> messages = AssetLoader.submit(() -> IOUtils.loadPropertiesFile("res/message_en.properties"));
+        Properties gameProps = IOUtils.readPropertiesFile("res/app.properties");
+        Properties messageProps = null;
+        try {
+            messageProps = AssetLoader.join(messages);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(-1);
+        }
+        ConfigWatcher configWatcher = new ConfigWatcher("res/app.properties", GameConfig.from(gameProps));
+        configWatcher.start();
+        FrameProfiler.dumpOnExit();
+        ScoreStore scoreStore = null;
+        try {
+            scoreStore = ScoreStore.open(Paths.get(configWatcher.get().getScoresFile()), 1);
+        } catch (IOException ex) {
+            System.err.println("High scores disabled: " + ex);
+        }
+        ShadowDonkeyKong game = new ShadowDonkeyKong(configWatcher, messageProps, scoreStore);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--record")) {
+                game.recordTo(args[i + 1]);
+            } else if (args[i].equals("--replay")) {
+                game.replayFrom(args[i + 1]);
+            }
+        }
+        GameConfig config = configWatcher.get();
+        AudioEngine audio = config.isAudioEnabled() ? AudioEngine.open(config) : null;
+        game.world.setEventListener(audio);
+        game.run();
+        game.stopRecording();
+        if (audio != null) {
+            audio.close();
+        }
+        if (scoreStore != null) {
+            try {
+                scoreStore.close();
+            } catch (IOException ex) {
+                System.err.println("Could not save scores: " + ex);
+            }
+        }
+        System.out.println(StartupTimer.summary());
+        if (audio != null) {
+            System.out.println(audio.summary());
+        }
+        System.out.println(AssetRegistry.summary());
+        if (game.renderer != null) {
+            System.out.println(game.renderer.summary());
+        }
+        System.out.println(TextLabel.summary());
+        System.out.println(game.clock.summary());
+        System.out.println(game.world.summary());
+        if (game.world.isStreamed()) {
+            System.out.println(game.world.getStreamer().summary());
+        }
+    }
+}
+
+
+//GameWorld Class
+class GameWorld {
+    private GameConfig config;
+
+    private final EntityStore entities;
+    private final Mario mario;
+    private final DonkeyKong donkey;
+    private final Hammer hammer;
+    // rows from here on are barrels
+    private final int firstBarrel;
+
+    private final ClimberSystem climbers = new ClimberSystem();
+    private final ThrowerSystem throwers = new ThrowerSystem();
+    private final DropSystem drops = new DropSystem();
+    private final RollerSystem rollers = new RollerSystem();
+    private final SpriteSystem sprites = new SpriteSystem();
+
+    // Barrel physics and the narrow phase may be split across threads; see ParallelStepper.
+    private static final int JUMPED_OVER = 1;
+    private static final int TOUCHING = 2;
+    private final ParallelStepper stepper;
+    private final IntBinaryOperator physicsRange = this::stepPhysics;
+    private final IntBinaryOperator narrowPhaseRange = this::checkCandidates;
+    private int[] candidateHits = new int[64];
+    private final List<Platform> platforms = new ArrayList<>();
+    private final List<Ladder> ladders = new ArrayList<>();
+
+    private BarrelGrid barrelGrid;
+    private int levelVersion;
+    private GeometryIndex platformIndex;
+    private GeometryIndex ladderIndex;
+    private int indexedVersion = -1;
+    private final List<Barrel> candidates = new ArrayList<>();
+
+    private final Executor chunkLoader;
+    private LevelStreamer streamer;
+    private long[] spawnedChunks = new long[0];
+    // level barrels by order: smashed ones never come back, jumped ones don't score again
+    private long[] smashedLevelBarrels = new long[0];
+    private long[] jumpedLevelBarrels = new long[0];
+    private int levelWidth;
+    private int levelHeight;
+
+    private final ScoreManager scoreManager = new ScoreManager();
+    private GameEventListener events = GameEventListener.NONE;
+    private int currentFrame = 0;
+    private boolean won;
+
+    private static final int SLEEP_CHECK_INTERVAL = 15;
+    private long ticks;
+    private long sleepingTicks;
+
+    // Thrown barrels are ordered after every barrel the level itself places.
+    private static final int THROWN_ORDER_BASE = 1 << 30;
+    private int nextThrownOrder;
+    // Every barrel takes an id when it spawns and hands it back when it leaves, so ids stay below
+    // the most barrels alive at once; the score manager keys its state by them.
+    private int nextBarrelId;
+    private int[] freeBarrelIds = new int[16];
+    private int freeBarrelIdCount;
+    private long thrownBarrels;
+    private long skippedThrows;
+    private long recycledBarrels;
+
+    public GameWorld(GameConfig config) {
+        this(config, null);
+    }
+
+    // Chunks of a streamed level are prefetched on chunkLoader; with null they're only loaded
+    // on the calling thread as Mario reaches them, which keeps headless runs deterministic.
+    public GameWorld(GameConfig config, Executor chunkLoader) {
+        this.chunkLoader = chunkLoader;
+        stepper = new ParallelStepper(config.getParallelThreads(), config.getParallelThreshold(), config.getParallelChunkSize());
+        entities = new EntityStore(3 + config.getBarrelCount() + config.getBarrelPoolSize());
+        mario = new Mario(entities, config);
+        donkey = new DonkeyKong(entities, config);
+        hammer = new Hammer(entities, config);
+        firstBarrel = entities.size();
+        // barrel views for every row up front, so recycling thrown barrels never allocates
+        entities.fillViews(i -> new Barrel(entities, i));
+
+        reset(config);
+    }
+
+    private void buildLevel() {
+        levelVersion++;
+        ladders.clear();
+        platforms.clear();
+        streamer = null;
+
+        String levelFile = config.getLevelFile();
+        if (levelFile != null) {
+            try {
+                ChunkedLevel level = ChunkedLevel.open(Paths.get(levelFile));
+                streamer = new LevelStreamer(this, level, chunkLoader);
+                spawnedChunks = new long[(level.getChunkCount() + 63) / 64];
+                smashedLevelBarrels = new long[(level.getBarrelCount() + 63) / 64];
+                jumpedLevelBarrels = new long[smashedLevelBarrels.length];
+                levelWidth = level.getWidth();
+                levelHeight = level.getHeight();
+            } catch (IOException ex) {
+                System.err.println("Using the level in app.properties, could not open " + levelFile + ": " + ex);
+            }
+        }
+
+        if (streamer == null) {
+            spawnedChunks = new long[0];
+            smashedLevelBarrels = new long[0];
+            jumpedLevelBarrels = new long[0];
+            levelWidth = config.getWindowWidth();
+            levelHeight = config.getWindowHeight();
+
+            double[] ladderX = config.getLadderX();
+            double[] ladderY = config.getLadderY();
+            for (int i = 0; i < ladderX.length; i++) {
+                ladders.add(new Ladder(new Point(ladderX[i], ladderY[i]), i));
+            }
+
+            double[] platformX = config.getPlatformX();
+            double[] platformY = config.getPlatformY();
+            for (int i = 0; i < platformX.length; i++) {
+                platforms.add(new Platform(new Point(platformX[i], platformY[i]), i));
+            }
+        }
+        barrelGrid = new BarrelGrid(levelWidth, levelHeight, config.getBroadphaseCellSize());
+    }
+
+    public void reset() {
+        reset(config);
+    }
+
+    public void reset(GameConfig config) {
+        if (config != this.config) {
+            this.config = config;
+            buildLevel();
+        }
+
+        currentFrame = 0;
+        won = false;
+        scoreManager.reset(config);
+
+        mario.reset(config);
+        donkey.reset(config);
+
+        hammer.reset(config);
+        entities.truncate(firstBarrel);
+        barrelGrid.clear();
+        nextThrownOrder = THROWN_ORDER_BASE;
+        nextBarrelId = 0;
+        freeBarrelIdCount = 0;
+
+        if (streamer != null) {
+            Arrays.fill(spawnedChunks, 0);
+            Arrays.fill(smashedLevelBarrels, 0);
+            Arrays.fill(jumpedLevelBarrels, 0);
+            streamer.reset(config.getMarioStartX(), config.getMarioStartY());
+            return;
+        }
+
+        double[] barrelX = config.getBarrelX();
+        double[] barrelY = config.getBarrelY();
+        double[] barrelStartY = config.getBarrelStartY();
+        boolean[] barrelFalling = config.getBarrelFalling();
+        for (int i = 0; i < barrelX.length; i++) {
+            Barrel barrel = Barrel.add(entities, takeBarrelId(), barrelX[i], barrelY[i], barrelFalling[i], barrelStartY[i], i);
+            barrelGrid.insert(barrel);
+        }
+    }
+    // Advances the simulation by one frame. Returns false once the game is over.
+    public boolean update(InputSource input) {
+        if (streamer != null) {
+            streamer.update(mario.getX(), mario.getY());
+        }
+
+        entities.savePrevious();
+        events.onEvent(GameEventListener.TICK);
+
+        // The systems run in this order every tick. Climbers go before drops so Mario doesn't
+        // walk in the tick he lands, and the sleep check before drops so a barrel that lands is
+        // still re-filed in the grid.
+        long t = FrameProfiler.start();
+        indexGeometry();
+        if (climbers.run(entities, input, platformIndex, ladderIndex) > 0) {
+            events.onEvent(GameEventListener.JUMP);
+        }
+        FrameProfiler.end(FrameProfiler.MARIO, t);
+
+        t = FrameProfiler.start();
+        throwers.run(entities, config.getThrowInterval());
+        if (donkey.takeThrow()) {
+            throwBarrel();
+        }
+        FrameProfiler.end(FrameProfiler.DONKEY_HAMMER, t);
+
+        t = FrameProfiler.start();
+        if (currentFrame % SLEEP_CHECK_INTERVAL == 0) {
+            updateSleep();
+        }
+        if (stepper.sum(0, entities.size(), physicsRange) > 0) {
+            recycleEscaped();
+        }
+        for (int i = firstBarrel; i < entities.size(); i++) {
+            if (!entities.asleep[i]) {
+                barrelGrid.move(barrelAt(i));
+            }
+        }
+        ticks++;
+        sleepingTicks += entities.getSleepingCount();
+
+        // Only barrels near Mario can collide with him, and only barrels below him in a narrow
+        // column can count as jumped, so the grid hands back that strip in spawn order.
+        double marioX = mario.getX();
+        double marioY = mario.getY();
+        // The tests themselves may run in parallel; their results are applied here in spawn order.
+        barrelGrid.query(marioX - 40, marioY, marioX + 40, Double.POSITIVE_INFINITY, candidates);
+        if (candidateHits.length < candidates.size()) {
+            candidateHits = new int[Math.max(candidates.size(), candidateHits.length * 2)];
+        }
+        stepper.sum(0, candidates.size(), narrowPhaseRange);
+        for (int i = 0, n = candidates.size(); i < n; i++) {
+            Barrel barrel = candidates.get(i);
+            int hits = candidateHits[i];
+            if ((hits & JUMPED_OVER) != 0) {
+                scoreManager.addBarrelJumped(barrel.getId());
+                events.onEvent(GameEventListener.BARREL_JUMPED);
+            }
+
+            if (!mario.hasHammer() && (hits & TOUCHING) != 0) {
+                FrameProfiler.end(FrameProfiler.BARRELS, t);
+                events.onEvent(GameEventListener.GAME_OVER);
+                return false;
             }
 
-            if (mario.hasHammer() && GameUtils.isColliding(mario.getPosition(), 32, 32, barrel.getPosition(), barrel.getWidth(), barrel.getHeight())) {
+            if (mario.hasHammer() && (hits & TOUCHING) != 0) {
                 scoreManager.addBarrelDestroyed();
-                it.remove();
-                continue;
+                events.onEvent(GameEventListener.BARREL_SMASHED);
+                if (streamer != null && barrel.getOrder() < THROWN_ORDER_BASE) {
+                    setBit(smashedLevelBarrels, barrel.getOrder());
+                }
+                barrelGrid.remove(barrel);
+                releaseBarrelId(barrel.getId());
+                entities.remove(barrel.getIndex());
+                recycledBarrels++;
             }
         }
+        FrameProfiler.end(FrameProfiler.BARRELS, t);
 
-        if (!hammer.isCollected() && GameUtils.isColliding(mario.getPosition(), 32, 32, hammer.getPosition(), 32, 32)) {
+        if (!hammer.isCollected() && entities.overlaps(mario.getIndex(), hammer.getIndex())) {
             mario.collectHammer();
             hammer.collect();
+            events.onEvent(GameEventListener.HAMMER);
         }
 
-        if (GameUtils.isColliding(mario.getPosition(), 32, 32, donkey.getPosition(), donkey.getWidth(), donkey.getHeight())) {
+        if (entities.overlaps(mario.getIndex(), donkey.getIndex())) {
             if (mario.hasHammer()) {
-                scoreManager.calculateBonus((GameUtils.getIntProperty(gameProps, "gamePlay.maxFrames", 10000) - currentFrame) / 60);
-                state = GameState.GAME_OVER;
-            } else {
-                state = GameState.GAME_OVER;
+                scoreManager.calculateBonus(getRemainingSeconds());
+                won = true;
             }
-            return;
+            events.onEvent(won ? GameEventListener.GAME_WON : GameEventListener.GAME_OVER);
+            return false;
         }
 
-        if ((GameUtils.getIntProperty(gameProps, "gamePlay.maxFrames", 10000) - currentFrame) <= 0) {
-            state = GameState.GAME_OVER;
-            return;
+        if ((config.getMaxFrames() - currentFrame) <= 0) {
+            events.onEvent(GameEventListener.GAME_OVER);
+            return false;
         }
 
-        drawHUD();
         currentFrame++;
+        return true;
     }
 
-    private void drawHUD() {
-        int scoreX = GameUtils.getIntProperty(gameProps, "gamePlay.score.x", 50);
-        int scoreY = GameUtils.getIntProperty(gameProps, "gamePlay.score.y", 50);
-        int maxFrames = GameUtils.getIntProperty(gameProps, "gamePlay.maxFrames", 10000);
+    // Writes everything update() reads or changes; the level itself comes from the config.
+    public void writeState(ByteBuffer out) {
+        out.putInt(currentFrame);
+        out.put((byte) (won ? 1 : 0));
+        out.putInt(nextThrownOrder);
+        out.putInt(nextBarrelId);
+        entities.writeState(out);
+        scoreManager.writeState(out);
+        out.putInt(spawnedChunks.length);
+        for (long word : spawnedChunks) {
+            out.putLong(word);
+        }
+        for (long word : smashedLevelBarrels) {
+            out.putLong(word);
+        }
+        for (long word : jumpedLevelBarrels) {
+            out.putLong(word);
+        }
+        // last, so a change in its length doesn't shift everything after it in the snapshot
+        out.putInt(freeBarrelIdCount);
+        for (int i = 0; i < freeBarrelIdCount; i++) {
+            out.putInt(freeBarrelIds[i]);
+        }
+    }
 
-        int remainingTime = (maxFrames - currentFrame) / 60;
-        scoreFont.drawString("Score " + scoreManager.getFinalScore(), scoreX, scoreY);
-        scoreFont.drawString("Time Left " + remainingTime, scoreX, scoreY + 30);
+    public void readState(ByteBuffer in) {
+        currentFrame = in.getInt();
+        won = in.get() != 0;
+        nextThrownOrder = in.getInt();
+        nextBarrelId = in.getInt();
+        entities.readState(in);
+        scoreManager.readState(in);
+        barrelGrid.clear();
+        for (int i = firstBarrel; i < entities.size(); i++) {
+            barrelGrid.insert(barrelAt(i));
+        }
+        int words = in.getInt();
+        if (words != spawnedChunks.length) {
+            spawnedChunks = new long[words];
+        }
+        for (int i = 0; i < words; i++) {
+            spawnedChunks[i] = in.getLong();
+        }
+        // sized by the level, like spawnedChunks
+        for (int i = 0; i < smashedLevelBarrels.length; i++) {
+            smashedLevelBarrels[i] = in.getLong();
+        }
+        for (int i = 0; i < jumpedLevelBarrels.length; i++) {
+            jumpedLevelBarrels[i] = in.getLong();
+        }
+        freeBarrelIdCount = in.getInt();
+        if (freeBarrelIdCount > freeBarrelIds.length) {
+            freeBarrelIds = new int[freeBarrelIdCount];
+        }
+        for (int i = 0; i < freeBarrelIdCount; i++) {
+            freeBarrelIds[i] = in.getInt();
+        }
     }
 
-    private void drawGameOverScreen() {
-        background.draw(Window.getWidth() / 2.0, Window.getHeight() / 2.0);
+    // Adds a streamed chunk's platforms and ladders, keeping both lists in level order so
+    // collisions resolve exactly as they would with the whole level loaded.
+    void attachChunk(LevelChunk chunk) {
+        List<Platform> chunkPlatforms = chunk.getPlatforms();
+        for (int i = 0; i < chunkPlatforms.size(); i++) {
+            insertByOrder(platforms, chunkPlatforms.get(i), Platform::getOrder);
+        }
+        List<Ladder> chunkLadders = chunk.getLadders();
+        for (int i = 0; i < chunkLadders.size(); i++) {
+            insertByOrder(ladders, chunkLadders.get(i), Ladder::getOrder);
+        }
+        levelVersion++;
+    }
 
-        String status = mario.hasHammer() ? messageProps.getProperty("gameEnd.won") : messageProps.getProperty("gameEnd.lost");
-        int centerX = Window.getWidth() / 2;
+    void detachChunk(LevelChunk chunk) {
+        removeByOrder(platforms, chunk.getPlatforms(), Platform::getOrder);
+        removeByOrder(ladders, chunk.getLadders(), Ladder::getOrder);
+        levelVersion++;
+        if (isChunkSpawned(chunk.getIndex())) {
+            parkBarrels(chunk);
+        }
+    }
 
-        Font statusFont = new Font(gameProps.getProperty("font"),
-                GameUtils.getIntProperty(gameProps, "gameEnd.status.fontSize", 24));
-        Font scoreFont = new Font(gameProps.getProperty("font"),
-                GameUtils.getIntProperty(gameProps, "gameEnd.scores.fontSize", 20));
+    boolean isChunkSpawned(int chunk) {
+        return (spawnedChunks[chunk >>> 6] & 1L << chunk) != 0;
+    }
 
-        statusFont.drawString(status,
-                centerX - statusFont.getWidth(status) / 2,
-                GameUtils.getIntProperty(gameProps, "gameEnd.status.y", 500));
+    // A chunk's barrels appear when it comes near Mario and go back to the pool when it's
+    // detached. Those he smashed stay gone and those he jumped don't score again.
+    void spawnBarrels(LevelChunk chunk) {
+        spawnedChunks[chunk.getIndex() >>> 6] |= 1L << chunk.getIndex();
+        for (int i = 0; i < chunk.getBarrelCount(); i++) {
+            int order = chunk.getBarrelOrder(i);
+            if (isBitSet(smashedLevelBarrels, order)) {
+                continue;
+            }
+            Barrel barrel = Barrel.add(entities, takeBarrelId(), chunk.getBarrelX(i), chunk.getBarrelY(i), chunk.isBarrelFalling(i),
+                    chunk.getBarrelStartY(i), order);
+            if (isBitSet(jumpedLevelBarrels, order)) {
+                scoreManager.markJumped(barrel.getId());
+            }
+            barrelGrid.insert(barrel);
+        }
+    }
 
-        String scoreStr = messageProps.getProperty("gameEnd.score") + " " + scoreManager.getFinalScore();
-        scoreFont.drawString(scoreStr,
-                centerX - scoreFont.getWidth(scoreStr) / 2,
-                GameUtils.getIntProperty(gameProps, "gameEnd.status.y", 500) + 60);
+    // Takes a detached chunk's barrels out of the world. Level barrels only ever fall straight
+    // down to where the level puts them, so when the chunk's barrels are spawned again they
+    // start there at rest; one still falling when its chunk goes simply lands early.
+    private void parkBarrels(LevelChunk chunk) {
+        spawnedChunks[chunk.getIndex() >>> 6] &= ~(1L << chunk.getIndex());
+        for (int i = entities.size() - 1; i >= firstBarrel; i--) {
+            int order = entities.order[i];
+            if (order < THROWN_ORDER_BASE && chunk.hasBarrel(order)) {
+                Barrel barrel = barrelAt(i);
+                if (scoreManager.isJumped(barrel.getId())) {
+                    setBit(jumpedLevelBarrels, order);
+                }
+                barrelGrid.remove(barrel);
+                releaseBarrelId(barrel.getId());
+                entities.remove(i);
+            }
+        }
+    }
 
-        String prompt = messageProps.getProperty("gameEnd.continue");
-        scoreFont.drawString(prompt,
-                centerX - scoreFont.getWidth(prompt) / 2,
-                Window.getHeight() - 100);
+    private static <T> void insertByOrder(List<T> list, T item, ToIntFunction<T> order) {
+        list.add(firstAtOrAfter(list, order.applyAsInt(item), order), item);
     }
 
+    // Removes items, which are in list and in order, in one pass over the index range from the
+    // first of them to the last.
+    private static <T> void removeByOrder(List<T> list, List<T> items, ToIntFunction<T> order) {
+        if (items.isEmpty()) {
+            return;
+        }
+        int from = firstAtOrAfter(list, order.applyAsInt(items.get(0)), order);
+        int to = firstAtOrAfter(list, order.applyAsInt(items.get(items.size() - 1)) + 1, order);
+        int kept = from;
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            T item = list.get(i);
+            if (next < items.size() && item == items.get(next)) {
+                next++;
+            } else {
+                list.set(kept++, item);
+            }
+        }
+        list.subList(kept, to).clear();
+    }
 
-    public static void main(String[] args) {
-        Properties gameProps = IOUtils.readPropertiesFile("res/app.properties");
-        Properties messageProps = IOUtils.readPropertiesFile("res/message_en.properties");
-        ShadowDonkeyKong game = new ShadowDonkeyKong(gameProps, messageProps);
-        game.run();
+    private static <T> int firstAtOrAfter(List<T> list, int key, ToIntFunction<T> order) {
+        int lo = 0;
+        int hi = list.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.applyAsInt(list.get(mid)) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
-}
 
+    private static boolean isBitSet(long[] bits, int i) {
+        return (bits[i >>> 6] & 1L << i) != 0;
+    }
 
-//Entity Interface
-interface Entity {
-    void update();
+    private static void setBit(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
 
-    void render();
-}
+    public void renderStatic(SpriteBatch batch, Camera camera) {
+        for (int i = 0, n = platforms.size(); i < n; i++) {
+            Platform p = platforms.get(i);
+            if (camera.isVisible(p.getX(), p.getY(), p.getWidth(), p.getHeight())) {
+                p.render(batch, 1);
+            }
+        }
+        for (int i = 0, n = ladders.size(); i < n; i++) {
+            Ladder l = ladders.get(i);
+            if (camera.isVisible(l.getX(), l.getY(), l.getWidth(), l.getHeight())) {
+                l.render(batch, 1);
+            }
+        }
+    }
 
+    public void renderDynamic(SpriteBatch batch, double alpha, Camera camera) {
+        sprites.render(entities, batch, alpha, camera);
+    }
 
-//Game State
-enum GameState {
-    HOME,
-    GAMEPLAY,
-    GAME_OVER
-}
+    // Platforms and ladders are re-indexed only when the level has changed since the last tick.
+    private void indexGeometry() {
+        if (indexedVersion != levelVersion) {
+            platformIndex = GeometryIndex.ofPlatforms(platforms);
+            ladderIndex = GeometryIndex.ofLadders(ladders);
+            indexedVersion = levelVersion;
+        }
+    }
 
+    // Drops and rolls rows [from, to); returns how many rollers fell out of the level.
+    private int stepPhysics(int from, int to) {
+        drops.run(entities, from, to);
+        return rollers.run(entities, from, to, platformIndex, levelWidth, levelHeight);
+    }
 
-//GameUtils Class
-class GameUtils {
-    public static boolean isColliding(Point pos1, double width1, double height1,
-                                      Point pos2, double width2, double height2) {
-        return pos1.x < pos2.x + width2 &&
-                pos1.x + width1 > pos2.x &&
-                pos1.y < pos2.y + height2 &&
-                pos1.y + height1 > pos2.y;
+    // Fills candidateHits[from, to) with what each candidate barrel does to Mario, without
+    // changing anything.
+    private int checkCandidates(int from, int to) {
+        int marioRow = mario.getIndex();
+        for (int i = from; i < to; i++) {
+            Barrel barrel = candidates.get(i);
+            // a barrel only scores once, so after that it's only checked for touching
+            int hits = !scoreManager.isJumped(barrel.getId()) && ScoreManager.isJumpedOver(mario, barrel)
+                    ? JUMPED_OVER : 0;
+            if (entities.overlaps(marioRow, barrel.getIndex())) {
+                hits |= TOUCHING;
+            }
+            candidateHits[i] = hits;
+        }
+        return 0;
     }
 
-    public static int getIntProperty(Properties props, String key, int defaultValue) {
-        try {
-            return Integer.parseInt(props.getProperty(key));
-        } catch (NumberFormatException e) {
-            return defaultValue;
+    // Donkey Kong rolls a barrel off to his right. When the pool is used up the throw is
+    // skipped, so the store never has to grow for thrown barrels.
+    private void throwBarrel() {
+        if (entities.getRollerCount() >= config.getBarrelPoolSize()) {
+            skippedThrows++;
+            return;
         }
+        double x = donkey.getX() + donkey.getWidth();
+        double y = donkey.getY() + donkey.getHeight() - Barrel.getImageHeight();
+        barrelGrid.insert(Barrel.addRolling(entities, takeBarrelId(), x, y, config.getThrowSpeed(), nextThrownOrder++));
+        thrownBarrels++;
+        events.onEvent(GameEventListener.BARREL_THROWN);
     }
 
-    public static double getDoubleProperty(Properties props, String key, double defaultValue) {
-        try {
-            return Double.parseDouble(props.getProperty(key));
-        } catch (NumberFormatException e) {
-            return defaultValue;
+    private int takeBarrelId() {
+        return freeBarrelIdCount > 0 ? freeBarrelIds[--freeBarrelIdCount] : nextBarrelId++;
+    }
+
+    // Clears what the leaving barrel scored so the next barrel given its id starts afresh.
+    private void releaseBarrelId(int id) {
+        scoreManager.forget(id);
+        if (freeBarrelIdCount == freeBarrelIds.length) {
+            freeBarrelIds = Arrays.copyOf(freeBarrelIds, freeBarrelIdCount * 2);
         }
+        freeBarrelIds[freeBarrelIdCount++] = id;
     }
-}
 
+    private void recycleEscaped() {
+        for (int i = entities.size() - 1; i >= firstBarrel; i--) {
+            if (entities.is(i, EntityStore.ESCAPED)) {
+                barrelGrid.remove(barrelAt(i));
+                releaseBarrelId(entities.id[i]);
+                entities.remove(i);
+                recycledBarrels++;
+            }
+        }
+    }
 
-//Hammer Class
-class Hammer implements Entity {
-    private final Image image;
-    private Point position;
-    private boolean collected = false;
+    private Barrel barrelAt(int i) {
+        return (Barrel) entities.getView(i);
+    }
+
+    // Puts resting barrels more than a screen away from Mario to sleep and wakes the ones that
+    // are back within a screen. Asleep or not, a resting barrel doesn't move, so this only saves
+    // work: the drop and roller systems and the grid skip asleep rows.
+    private void updateSleep() {
+        double marioX = mario.getX();
+        double marioY = mario.getY();
+        double reachX = config.getWindowWidth();
+        double reachY = config.getWindowHeight();
+        entities.updateSleep(marioX - reachX, marioY - reachY, marioX + reachX, marioY + reachY);
+    }
+
+    public String summary() {
+        return String.format("%.1f barrels asleep per tick, %d thrown, %d recycled, %d throws skipped with the pool full, %s",
+                ticks == 0 ? 0.0 : (double) sleepingTicks / ticks, thrownBarrels, recycledBarrels, skippedThrows, stepper.summary());
+    }
+
+    // Null goes back to ignoring events.
+    public void setEventListener(GameEventListener listener) {
+        events = listener == null ? GameEventListener.NONE : listener;
+    }
+
+    public int getRemainingSeconds() {
+        return (config.getMaxFrames() - currentFrame) / config.getTickRate();
+    }
+
+    public Mario getMario() {
+        return mario;
+    }
+
+    public DonkeyKong getDonkey() {
+        return donkey;
+    }
+
+    public Hammer getHammer() {
+        return hammer;
+    }
+
+    // Barrels whose boxes may overlap the area, in spawn order; see BarrelGrid.query.
+    public void queryBarrels(double minX, double minY, double maxX, double maxY, List<Barrel> out) {
+        barrelGrid.query(minX, minY, maxX, maxY, out);
+    }
+
+    public List<Platform> getPlatforms() {
+        return platforms;
+    }
+
+    public List<Ladder> getLadders() {
+        return ladders;
+    }
+
+    // Bumped whenever platforms and ladders are rebuilt, so cached renderings can be refreshed.
+    public int getLevelVersion() {
+        return levelVersion;
+    }
+
+    public ScoreManager getScoreManager() {
+        return scoreManager;
+    }
+
+    public EntityStore getEntities() {
+        return entities;
+    }
+
+    public int getBarrelCount() {
+        return entities.size() - firstBarrel;
+    }
+
+    public Barrel getBarrel(int i) {
+        return barrelAt(firstBarrel + i);
+    }
+
+    public int getCurrentFrame() {
+        return currentFrame;
+    }
+
+    public int getLevelWidth() {
+        return levelWidth;
+    }
+
+    public int getLevelHeight() {
+        return levelHeight;
+    }
+
+    // True when platforms and ladders come and go as Mario moves through a chunked level.
+    public boolean isStreamed() {
+        return streamer != null;
+    }
+
+    public LevelStreamer getStreamer() {
+        return streamer;
+    }
+
+    // True once Mario has reached Donkey Kong while holding the hammer.
+    public boolean isWon() {
+        return won;
+    }
+}
+
+
+//RewindBuffer Class
+// Keeps recent world snapshots as XOR deltas against the snapshot after them, so stepping back
+// is newest ^ delta. Deltas are zero-run encoded into a fixed ring; the oldest are dropped first.
+class RewindBuffer {
+    private final byte[] ring;
+    private final int[] entryOffset;
+    private final int[] entryLength;
+    private final int[] entryPreviousSize;
+    private int oldest;
+    private int entries;
+    private int writeOffset;
+
+    private byte[] latest = new byte[4096];
+    private int latestSize = -1;
+    private byte[] current = new byte[4096];
+    private int currentSize;
+    private byte[] encoded = new byte[8192];
+    private ByteBuffer latestBuffer = ByteBuffer.wrap(latest);
+    private ByteBuffer currentBuffer = ByteBuffer.wrap(current);
+
+    public RewindBuffer(int maxSnapshots, int bufferBytes) {
+        ring = new byte[bufferBytes];
+        entryOffset = new int[maxSnapshots];
+        entryLength = new int[maxSnapshots];
+        entryPreviousSize = new int[maxSnapshots];
+    }
+
+    public void clear() {
+        oldest = 0;
+        entries = 0;
+        writeOffset = 0;
+        if (latestSize > 0) {
+            Arrays.fill(latest, 0, latestSize, (byte) 0);
+        }
+        latestSize = -1;
+    }
+
+    // Takes a snapshot of the world's state as it is now.
+    public void push(GameWorld world) {
+        int previousCurrentSize = currentSize;
+        while (true) {
+            try {
+                currentBuffer.clear();
+                world.writeState(currentBuffer);
+                break;
+            } catch (BufferOverflowException ex) {
+                current = new byte[current.length * 2];
+                currentBuffer = ByteBuffer.wrap(current);
+                previousCurrentSize = 0;
+            }
+        }
+        currentSize = currentBuffer.position();
+        // bytes past a snapshot's end stay zero so snapshots of different sizes XOR cleanly
+        if (previousCurrentSize > currentSize) {
+            Arrays.fill(current, currentSize, previousCurrentSize, (byte) 0);
+        }
+
+        if (latestSize >= 0) {
+            int length = encodeDelta(Math.max(latestSize, currentSize));
+            store(length, latestSize);
+        }
+
+        if (latest.length < current.length) {
+            latest = Arrays.copyOf(latest, current.length);
+            latestBuffer = ByteBuffer.wrap(latest);
+        }
+        byte[] swap = latest;
+        latest = current;
+        current = swap;
+        ByteBuffer swapBuffer = latestBuffer;
+        latestBuffer = currentBuffer;
+        currentBuffer = swapBuffer;
+        int swapSize = latestSize < 0 ? 0 : latestSize;
+        latestSize = currentSize;
+        currentSize = swapSize;
+    }
+
+    // Restores the world to the snapshot before the newest one. Returns false when history is empty.
+    public boolean stepBack(GameWorld world) {
+        if (entries == 0) {
+            return false;
+        }
+        int entry = (oldest + entries - 1) % entryOffset.length;
+        int previousSize = entryPreviousSize[entry];
+        if (latest.length < previousSize) {
+            latest = Arrays.copyOf(latest, previousSize);
+            latestBuffer = ByteBuffer.wrap(latest);
+        }
+        decodeDelta(entryOffset[entry], entryLength[entry]);
+        entries--;
+        writeOffset = entryOffset[entry];
+        latestSize = previousSize;
+        latestBuffer.clear();
+        latestBuffer.limit(latestSize);
+        world.readState(latestBuffer);
+        return true;
+    }
+
+    public int getSnapshotCount() {
+        return latestSize < 0 ? 0 : entries + 1;
+    }
+
+    public int getBytesUsed() {
+        int bytes = 0;
+        for (int i = 0; i < entries; i++) {
+            bytes += entryLength[(oldest + i) % entryOffset.length];
+        }
+        return bytes;
+    }
+
+    // Encodes latest ^ current as (zero run, literal run, literal bytes) triples.
+    private int encodeDelta(int size) {
+        if (encoded.length < size * 2 + 16) {
+            encoded = new byte[size * 2 + 16];
+        }
+        int out = 0;
+        int i = 0;
+        while (i < size) {
+            int zeroStart = i;
+            while (i < size && latest[i] == current[i]) {
+                i++;
+            }
+            int literalStart = i;
+            while (i < size && latest[i] != current[i]) {
+                i++;
+            }
+            out = putVarint(out, literalStart - zeroStart);
+            out = putVarint(out, i - literalStart);
+            for (int j = literalStart; j < i; j++) {
+                encoded[out++] = (byte) (latest[j] ^ current[j]);
+            }
+        }
+        return out;
+    }
+
+    private void decodeDelta(int offset, int length) {
+        int in = offset;
+        int end = offset + length;
+        int position = 0;
+        while (in < end) {
+            int zeros = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = ring[in++];
+                zeros |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            int literals = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = ring[in++];
+                literals |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            position += zeros;
+            for (int j = 0; j < literals; j++) {
+                latest[position++] ^= ring[in++];
+            }
+        }
+    }
+
+    private int putVarint(int out, int value) {
+        while (value >= 0x80) {
+            encoded[out++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        encoded[out++] = (byte) value;
+        return out;
+    }
+
+    private void store(int length, int previousSize) {
+        if (length > ring.length) {
+            // a single delta bigger than the whole buffer: history can't reach past this point
+            oldest = 0;
+            entries = 0;
+            writeOffset = 0;
+            return;
+        }
+        if (writeOffset + length > ring.length) {
+            // skip the tail; any entries still living there are the oldest ones
+            while (entries > 0 && entryOffset[oldest] >= writeOffset) {
+                dropOldest();
+            }
+            writeOffset = 0;
+        }
+        while (entries > 0 && (entries == entryOffset.length || overlaps(oldest, writeOffset, length))) {
+            dropOldest();
+        }
+        System.arraycopy(encoded, 0, ring, writeOffset, length);
+        int entry = (oldest + entries) % entryOffset.length;
+        entryOffset[entry] = writeOffset;
+        entryLength[entry] = length;
+        entryPreviousSize[entry] = previousSize;
+        entries++;
+        writeOffset += length;
+    }
+
+    private boolean overlaps(int entry, int offset, int length) {
+        return entryOffset[entry] < offset + length && entryOffset[entry] + entryLength[entry] > offset;
+    }
+
+    private void dropOldest() {
+        oldest = (oldest + 1) % entryOffset.length;
+        entries--;
+    }
+}
+
+
+//ChunkedLevel Class
+// A level compiled by LevelCompiler, memory-mapped. The level is cut into square chunks; each
+// entity belongs to the chunk holding its top-left corner and keeps its order in the source level.
+// An entity can stretch up to reach chunks right of or below its own, so that many chunks around
+// Mario must be loaded for collisions to see everything that overlaps him.
+// Layout: header, then a directory entry per chunk, then each chunk's platforms, ladders, barrels.
+class ChunkedLevel {
+    public static final int MAGIC = 0x444B4C31; // "DKL1"
+    public static final int HEADER_BYTES = 28;
+    public static final int DIRECTORY_ENTRY_BYTES = 20;
+    public static final int POINT_BYTES = 20;
+    public static final int BARREL_BYTES = 29;
+
+    private final MappedByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int chunkSize;
+    private final int columns;
+    private final int rows;
+    private final int reach;
+
+    private ChunkedLevel(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled level");
+        }
+        width = data.getInt(4);
+        height = data.getInt(8);
+        chunkSize = data.getInt(12);
+        columns = data.getInt(16);
+        rows = data.getInt(20);
+        reach = data.getInt(24);
+        if (chunkSize <= 0 || columns <= 0 || rows <= 0 || reach <= 0
+                || data.capacity() < HEADER_BYTES + (long) columns * rows * DIRECTORY_ENTRY_BYTES) {
+            throw new IOException("Corrupt level header");
+        }
+    }
+
+    public static ChunkedLevel open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ChunkedLevel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Only absolute reads, so chunks can be decoded on any thread.
+    public LevelChunk readChunk(int index) {
+        int entry = HEADER_BYTES + index * DIRECTORY_ENTRY_BYTES;
+        int offset = (int) data.getLong(entry);
+        int platformCount = data.getInt(entry + 8);
+        int ladderCount = data.getInt(entry + 12);
+        int barrelCount = data.getInt(entry + 16);
+
+        List<Platform> platforms = new ArrayList<>(platformCount);
+        for (int i = 0; i < platformCount; i++, offset += POINT_BYTES) {
+            platforms.add(new Platform(new Point(data.getDouble(offset + 4), data.getDouble(offset + 12)), data.getInt(offset)));
+        }
+        List<Ladder> ladders = new ArrayList<>(ladderCount);
+        for (int i = 0; i < ladderCount; i++, offset += POINT_BYTES) {
+            ladders.add(new Ladder(new Point(data.getDouble(offset + 4), data.getDouble(offset + 12)), data.getInt(offset)));
+        }
+        int[] order = new int[barrelCount];
+        double[] x = new double[barrelCount];
+        double[] y = new double[barrelCount];
+        double[] startY = new double[barrelCount];
+        boolean[] falling = new boolean[barrelCount];
+        for (int i = 0; i < barrelCount; i++, offset += BARREL_BYTES) {
+            order[i] = data.getInt(offset);
+            x[i] = data.getDouble(offset + 4);
+            y[i] = data.getDouble(offset + 12);
+            startY[i] = data.getDouble(offset + 20);
+            falling[i] = data.get(offset + 28) != 0;
+        }
+        return new LevelChunk(index, platforms, ladders, order, x, y, startY, falling);
+    }
+
+    public int columnOf(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor(x / chunkSize)));
+    }
+
+    public int rowOf(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / chunkSize)));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getChunkCount() {
+        return columns * rows;
+    }
+
+    public int getReach() {
+        return reach;
+    }
+
+    // Barrels across every chunk; their orders run from 0 to one less than this.
+    public int getBarrelCount() {
+        int count = 0;
+        for (int index = 0; index < getChunkCount(); index++) {
+            count += data.getInt(HEADER_BYTES + index * DIRECTORY_ENTRY_BYTES + 16);
+        }
+        return count;
+    }
+}
+
+
+//LevelChunk Class
+// The decoded contents of one chunk. Platforms and ladders are built when the chunk is read;
+// barrels stay as plain columns until the world spawns them.
+class LevelChunk {
+    private final int index;
+    private final List<Platform> platforms;
+    private final List<Ladder> ladders;
+    private final int[] barrelOrder;
+    private final double[] barrelX;
+    private final double[] barrelY;
+    private final double[] barrelStartY;
+    private final boolean[] barrelFalling;
+
+    public LevelChunk(int index, List<Platform> platforms, List<Ladder> ladders, int[] barrelOrder,
+                      double[] barrelX, double[] barrelY, double[] barrelStartY, boolean[] barrelFalling) {
+        this.index = index;
+        this.platforms = platforms;
+        this.ladders = ladders;
+        this.barrelOrder = barrelOrder;
+        this.barrelX = barrelX;
+        this.barrelY = barrelY;
+        this.barrelStartY = barrelStartY;
+        this.barrelFalling = barrelFalling;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public List<Platform> getPlatforms() {
+        return platforms;
+    }
+
+    public List<Ladder> getLadders() {
+        return ladders;
+    }
+
+    public int getBarrelCount() {
+        return barrelOrder.length;
+    }
+
+    public int getBarrelOrder(int i) {
+        return barrelOrder[i];
+    }
+
+    // Whether the level barrel with this order is one of the chunk's; the compiler writes them in order.
+    public boolean hasBarrel(int order) {
+        return Arrays.binarySearch(barrelOrder, order) >= 0;
+    }
+
+    public double getBarrelX(int i) {
+        return barrelX[i];
+    }
+
+    public double getBarrelY(int i) {
+        return barrelY[i];
+    }
+
+    public double getBarrelStartY(int i) {
+        return barrelStartY[i];
+    }
+
+    public boolean isBarrelFalling(int i) {
+        return barrelFalling[i];
+    }
+}
+
+
+//LevelStreamer Class
+// Keeps the chunks around Mario attached to the world. Chunks within the level's reach of Mario's
+// are loaded on the game thread if they aren't ready yet, so collisions never miss geometry; the
+// ring beyond that is prefetched on the loader, and chunks further out again are detached.
+// Detached chunks stay decoded until Mario is further away still, so walking back and forth
+// over a chunk edge reattaches the same platforms and ladders instead of reading them again.
+class LevelStreamer {
+    private final int requiredRadius;
+    private final int prefetchRadius;
+    private final int unloadRadius;
+    private final int cacheRadius;
+
+    private final GameWorld world;
+    private final ChunkedLevel level;
+    private final Executor loader;
+    private final LevelChunk[] attached;
+    private final LevelChunk[] decoded;
+    private final boolean[] pending;
+    private final Queue<LevelChunk> ready = new ConcurrentLinkedQueue<>();
+    private final List<LevelChunk> active = new ArrayList<>();
+    private final List<LevelChunk> detached = new ArrayList<>();
+
+    private long loads;
+    private long prefetched;
+    private long stalls;
+    private long reused;
+    private long unloads;
+
+    public LevelStreamer(GameWorld world, ChunkedLevel level, Executor loader) {
+        this.world = world;
+        this.level = level;
+        this.loader = loader;
+        this.attached = new LevelChunk[level.getChunkCount()];
+        this.decoded = new LevelChunk[level.getChunkCount()];
+        this.pending = new boolean[level.getChunkCount()];
+        requiredRadius = level.getReach();
+        prefetchRadius = requiredRadius + 1;
+        unloadRadius = requiredRadius + 2;
+        cacheRadius = unloadRadius + 2;
+    }
+
+    // Drops every chunk and loads the ones around (x, y) straight away.
+    public void reset(double x, double y) {
+        for (int i = active.size() - 1; i >= 0; i--) {
+            detach(i);
+        }
+        update(x, y);
+    }
+
+    public void update(double x, double y) {
+        int column = level.columnOf(x);
+        int row = level.rowOf(y);
+
+        LevelChunk chunk;
+        while ((chunk = ready.poll()) != null) {
+            int index = chunk.getIndex();
+            pending[index] = false;
+            if (attached[index] == null && decoded[index] == null && distance(index, column, row) <= unloadRadius) {
+                prefetched++;
+                attach(chunk);
+            }
+        }
+
+        int radius = loader == null ? requiredRadius : prefetchRadius;
+        for (int r = Math.max(0, row - radius); r <= Math.min(level.getRows() - 1, row + radius); r++) {
+            for (int c = Math.max(0, column - radius); c <= Math.min(level.getColumns() - 1, column + radius); c++) {
+                int index = r * level.getColumns() + c;
+                if (attached[index] != null) {
+                    continue;
+                }
+                if (decoded[index] != null) {
+                    reused++;
+                    attach(decoded[index]);
+                } else if (Math.abs(r - row) <= requiredRadius && Math.abs(c - column) <= requiredRadius) {
+                    if (pending[index]) {
+                        stalls++;
+                    }
+                    attach(level.readChunk(index));
+                } else if (!pending[index]) {
+                    pending[index] = true;
+                    loader.execute(() -> ready.add(level.readChunk(index)));
+                }
+            }
+        }
+
+        for (int i = active.size() - 1; i >= 0; i--) {
+            LevelChunk near = active.get(i);
+            int distance = distance(near.getIndex(), column, row);
+            if (distance > unloadRadius) {
+                detach(i);
+            } else if (distance <= requiredRadius && !world.isChunkSpawned(near.getIndex())) {
+                // only chunks that are always loaded by now spawn barrels, so prefetch timing
+                // can't change what Mario meets
+                world.spawnBarrels(near);
+            }
+        }
+
+        for (int i = detached.size() - 1; i >= 0; i--) {
+            LevelChunk far = detached.get(i);
+            if (distance(far.getIndex(), column, row) > cacheRadius) {
+                decoded[far.getIndex()] = null;
+                removeSwap(detached, i);
+            }
+        }
+    }
+
+    public int getAttachedCount() {
+        return active.size();
+    }
+
+    public String summary() {
+        return loads + " chunks loaded (" + prefetched + " prefetched, " + stalls + " waited on, " + reused
+                + " still decoded), " + unloads + " unloaded, " + active.size() + " attached";
+    }
+
+    private void attach(LevelChunk chunk) {
+        if (decoded[chunk.getIndex()] == chunk) {
+            detached.remove(chunk);
+        }
+        attached[chunk.getIndex()] = chunk;
+        decoded[chunk.getIndex()] = chunk;
+        active.add(chunk);
+        world.attachChunk(chunk);
+        loads++;
+    }
+
+    private void detach(int activeIndex) {
+        LevelChunk chunk = removeSwap(active, activeIndex);
+        attached[chunk.getIndex()] = null;
+        detached.add(chunk);
+        world.detachChunk(chunk);
+        unloads++;
+    }
+
+    private static LevelChunk removeSwap(List<LevelChunk> chunks, int i) {
+        LevelChunk chunk = chunks.get(i);
+        int last = chunks.size() - 1;
+        chunks.set(i, chunks.get(last));
+        chunks.remove(last);
+        return chunk;
+    }
+
+    private int distance(int index, int column, int row) {
+        int c = index % level.getColumns();
+        int r = index / level.getColumns();
+        return Math.max(Math.abs(c - column), Math.abs(r - row));
+    }
+}
+
+
+//LevelCompiler Class
+// Compiles the level in app.properties into a ChunkedLevel file:
+// java LevelCompiler [--config file] [--out file] [--chunk size] [--repeat N]
+// --repeat stacks N copies of the level on top of each other to make a tall test level.
+class LevelCompiler {
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        GameConfig config = GameConfig.from(IOUtils.readPropertiesFile(options.getOrDefault("config", "res/app.properties")));
+        Path out = Paths.get(options.getOrDefault("out", "res/level.dkl"));
+        int chunkSize = Integer.parseInt(options.getOrDefault("chunk", Integer.toString(config.getLevelChunkSize())));
+        int repeat = Integer.parseInt(options.getOrDefault("repeat", "1"));
+
+        long start = System.nanoTime();
+        int entities = compile(config, repeat, chunkSize, out);
+        System.out.printf("wrote %d entities to %s in %.0f ms%n", entities, out, (System.nanoTime() - start) / 1e6);
+    }
+
+    // Copy k of a repeated level sits k screens further down. Returns the number of entities written.
+    public static int compile(GameConfig config, int repeat, int chunkSize, Path out) throws IOException {
+        int width = config.getWindowWidth();
+        int height = config.getWindowHeight() * repeat;
+        int columns = Math.max(1, (width + chunkSize - 1) / chunkSize);
+        int rows = Math.max(1, (height + chunkSize - 1) / chunkSize);
+        int chunks = columns * rows;
+
+        double[][] platforms = repeatPoints(config.getPlatformX(), config.getPlatformY(), repeat, config.getWindowHeight());
+        double[][] ladders = repeatPoints(config.getLadderX(), config.getLadderY(), repeat, config.getWindowHeight());
+        double[][] barrels = repeatPoints(config.getBarrelX(), config.getBarrelY(), repeat, config.getWindowHeight());
+        double[] barrelStartY = config.getBarrelStartY();
+        boolean[] barrelFalling = config.getBarrelFalling();
+
+        List<List<Integer>> platformChunks = bucket(platforms, chunks, columns, rows, chunkSize);
+        List<List<Integer>> ladderChunks = bucket(ladders, chunks, columns, rows, chunkSize);
+        List<List<Integer>> barrelChunks = bucket(barrels, chunks, columns, rows, chunkSize);
+
+        long size = ChunkedLevel.HEADER_BYTES + (long) chunks * ChunkedLevel.DIRECTORY_ENTRY_BYTES
+                + (long) (platforms[0].length + ladders[0].length) * ChunkedLevel.POINT_BYTES
+                + (long) barrels[0].length * ChunkedLevel.BARREL_BYTES;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Level too large: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(ChunkedLevel.MAGIC).putInt(width).putInt(height).putInt(chunkSize).putInt(columns).putInt(rows)
+                .putInt(reach(chunkSize));
+
+        long offset = ChunkedLevel.HEADER_BYTES + (long) chunks * ChunkedLevel.DIRECTORY_ENTRY_BYTES;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int platformCount = platformChunks.get(chunk).size();
+            int ladderCount = ladderChunks.get(chunk).size();
+            int barrelCount = barrelChunks.get(chunk).size();
+            buffer.putLong(offset).putInt(platformCount).putInt(ladderCount).putInt(barrelCount);
+            offset += (long) (platformCount + ladderCount) * ChunkedLevel.POINT_BYTES
+                    + (long) barrelCount * ChunkedLevel.BARREL_BYTES;
+        }
+
+        int perCopy = barrelStartY.length;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int i : platformChunks.get(chunk)) {
+                buffer.putInt(i).putDouble(platforms[0][i]).putDouble(platforms[1][i]);
+            }
+            for (int i : ladderChunks.get(chunk)) {
+                buffer.putInt(i).putDouble(ladders[0][i]).putDouble(ladders[1][i]);
+            }
+            for (int i : barrelChunks.get(chunk)) {
+                double shift = barrels[1][i] - barrels[1][i % perCopy];
+                buffer.putInt(i).putDouble(barrels[0][i]).putDouble(barrels[1][i])
+                        .putDouble(barrelStartY[i % perCopy] + shift).put((byte) (barrelFalling[i % perCopy] ? 1 : 0));
+            }
+        }
+
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        return platforms[0].length + ladders[0].length + barrels[0].length;
+    }
+
+    // How many chunks the largest sprite (or Mario) can stretch across.
+    private static int reach(int chunkSize) {
+        double extent = 40;
+        for (String file : new String[]{"res/platform.png", "res/ladder.png", "res/barrel.png"}) {
+            double[] size = IOUtils.readImageSize(file);
+            extent = Math.max(extent, Math.max(size[0], size[1]));
+        }
+        return Math.max(1, (int) Math.ceil(extent / chunkSize));
+    }
+
+    private static double[][] repeatPoints(double[] x, double[] y, int repeat, int screenHeight) {
+        double[][] points = new double[2][x.length * repeat];
+        for (int copy = 0; copy < repeat; copy++) {
+            for (int i = 0; i < x.length; i++) {
+                points[0][copy * x.length + i] = x[i];
+                points[1][copy * x.length + i] = y[i] + (double) copy * screenHeight;
+            }
+        }
+        return points;
+    }
+
+    private static List<List<Integer>> bucket(double[][] points, int chunks, int columns, int rows, int chunkSize) {
+        List<List<Integer>> buckets = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int i = 0; i < points[0].length; i++) {
+            int column = Math.max(0, Math.min(columns - 1, (int) Math.floor(points[0][i] / chunkSize)));
+            int row = Math.max(0, Math.min(rows - 1, (int) Math.floor(points[1][i] / chunkSize)));
+            buckets.get(row * columns + column).add(i);
+        }
+        return buckets;
+    }
+}
+
+
+//InputSource Interface
+interface InputSource {
+    boolean isDown(Keys key);
+
+    boolean wasPressed(Keys key);
+}
+
+
+//SimulatedInput Interface
+// Input produced by a program rather than a keyboard; advance() moves it on by one tick.
+interface SimulatedInput extends InputSource {
+    void advance();
+}
+
+
+//GameEventListener Interface
+// Told what happens in a game, e.g. to play sounds. It's called on the thread updating the world,
+// in the middle of a tick, so it mustn't block or allocate. TICK starts every tick.
+interface GameEventListener {
+    int TICK = 0;
+    int JUMP = 1;
+    int HAMMER = 2;
+    int BARREL_JUMPED = 3;
+    int BARREL_SMASHED = 4;
+    int BARREL_THROWN = 5;
+    int GAME_OVER = 6;
+    int GAME_WON = 7;
+    int EVENT_COUNT = 8;
+
+    GameEventListener NONE = event -> {
+    };
+
+    void onEvent(int event);
+}
+
+
+//BagelInputSource Class
+// Presses are latched until a tick consumes them, so a frame that runs no ticks doesn't lose
+// a key press and a frame that runs several doesn't repeat it.
+class BagelInputSource implements InputSource {
+    private Input input;
+    private int pressed;
+
+    public void capture(Input input) {
+        this.input = input;
+        for (Keys key : KeyMask.KEYS) {
+            if (input.wasPressed(key)) {
+                pressed |= KeyMask.bit(key);
+            }
+        }
+    }
+
+    public void clearPresses() {
+        pressed = 0;
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return input.isDown(key);
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        return (pressed & KeyMask.bit(key)) != 0;
+    }
+}
+
+
+//SimulationClock Class
+// Fixed-timestep accumulator. Each rendered frame asks how many ticks to run; at most
+// maxTicksPerFrame run per frame and the rest are dropped so a slow machine can't spiral.
+class SimulationClock {
+    private long tickNanos;
+    private int maxTicksPerFrame;
+    private long lastTime;
+    private long accumulator;
+
+    private long ticks;
+    private long droppedTicks;
+    private long duplicatedFrames;
+
+    public SimulationClock(int tickRate, int maxTicksPerFrame) {
+        configure(tickRate, maxTicksPerFrame);
+    }
+
+    public void configure(int tickRate, int maxTicksPerFrame) {
+        this.tickNanos = 1_000_000_000L / Math.max(1, tickRate);
+        this.maxTicksPerFrame = Math.max(1, maxTicksPerFrame);
+    }
+
+    public void reset(long now) {
+        lastTime = now;
+        accumulator = tickNanos;
+    }
+
+    public int advance(long now) {
+        accumulator += now - lastTime;
+        lastTime = now;
+
+        long due = accumulator / tickNanos;
+        accumulator -= due * tickNanos;
+        if (due > maxTicksPerFrame) {
+            droppedTicks += due - maxTicksPerFrame;
+            due = maxTicksPerFrame;
+        }
+        if (due == 0) {
+            duplicatedFrames++;
+        }
+        ticks += due;
+        return (int) due;
+    }
+
+    // Fraction of a tick that has elapsed since the last one, used to interpolate rendering.
+    public double getAlpha() {
+        return (double) accumulator / tickNanos;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    public long getDuplicatedFrames() {
+        return duplicatedFrames;
+    }
+
+    public String summary() {
+        return ticks + " ticks, " + droppedTicks + " dropped, " + duplicatedFrames + " frames without a tick";
+    }
+}
+
+
+//FrameProfiler Class
+// Per-phase timings, switched on with -Ddk.profile=true. When it's off start() and end() reduce to
+// a constant check the JIT folds away. Histograms are shared by every thread that runs a world.
+class FrameProfiler {
+    public static final boolean ENABLED = Boolean.getBoolean("dk.profile");
+
+    public static final int BACKGROUND = 0;
+    public static final int STATIC_GEOMETRY = 1;
+    public static final int MARIO = 2;
+    public static final int DONKEY_HAMMER = 3;
+    public static final int BARRELS = 4;
+    public static final int SPRITES = 5;
+    public static final int HUD = 6;
+    public static final int SNAPSHOT = 7;
+    public static final int FRAME = 8;
+    public static final int GC = 9;
+    private static final String[] NAMES = {
+            "background", "static", "mario", "donkey+hammer", "barrels", "sprites", "hud", "snapshot", "frame", "gc"
+    };
+
+    // 8 log-linear buckets per power of two, so a bucket's bound is within 12.5% of any value in it
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final AtomicLongArray histograms = new AtomicLongArray(NAMES.length * BUCKETS);
+    private static final AtomicLongArray samples = new AtomicLongArray(NAMES.length);
+    private static final AtomicLongArray totals = new AtomicLongArray(NAMES.length);
+    private static final AtomicLongArray maxima = new AtomicLongArray(NAMES.length);
+
+    private static final EventType PHASE_EVENT = EventType.getEventType(PhaseEvent.class);
+    private static final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private static long gcMillis = -1;
+
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public static void end(int phase, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        record(phase, nanos);
+
+        if (PHASE_EVENT.isEnabled()) {
+            PhaseEvent event = new PhaseEvent();
+            event.phase = NAMES[phase];
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    // Called once per rendered frame; records how long the collectors paused since the last call.
+    // Frames without a collection aren't recorded, so the gc row describes the frames that had one.
+    public static void sampleGc() {
+        if (!ENABLED) {
+            return;
+        }
+        long total = 0;
+        for (int i = 0, n = collectors.size(); i < n; i++) {
+            total += Math.max(0, collectors.get(i).getCollectionTime());
+        }
+        if (gcMillis >= 0 && total > gcMillis) {
+            record(GC, (total - gcMillis) * 1_000_000);
+        }
+        gcMillis = total;
+    }
+
+    public static void record(int phase, long nanos) {
+        histograms.incrementAndGet(phase * BUCKETS + bucket(nanos));
+        samples.incrementAndGet(phase);
+        totals.addAndGet(phase, nanos);
+        long max = maxima.get(phase);
+        while (nanos > max && !maxima.compareAndSet(phase, max, nanos)) {
+            max = maxima.get(phase);
+        }
+    }
+
+    // Upper bound of the bucket holding the q-th quantile, never above the recorded maximum.
+    public static long percentile(int phase, double q) {
+        long count = samples.get(phase);
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms.get(phase * BUCKETS + b);
+            if (seen >= target) {
+                return Math.min(upperBound(b), maxima.get(phase));
+            }
+        }
+        return maxima.get(phase);
+    }
+
+    public static String[] overlayLines() {
+        String[] lines = new String[NAMES.length + 1];
+        lines[0] = String.format("%-13s %6s %6s %6s", "us", "p50", "p99", "max");
+        for (int phase = 0; phase < NAMES.length; phase++) {
+            lines[phase + 1] = String.format("%-13s %6d %6d %6d", NAMES[phase],
+                    percentile(phase, 0.5) / 1000, percentile(phase, 0.99) / 1000, maxima.get(phase) / 1000);
+        }
+        return lines;
+    }
+
+    public static void writeCsv(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("phase,count,mean_us,p50_us,p99_us,max_us");
+            for (int phase = 0; phase < NAMES.length; phase++) {
+                long count = samples.get(phase);
+                out.printf(Locale.ROOT, "%s,%d,%.1f,%.1f,%.1f,%.1f%n", NAMES[phase], count,
+                        count == 0 ? 0.0 : totals.get(phase) / 1e3 / count,
+                        percentile(phase, 0.5) / 1e3, percentile(phase, 0.99) / 1e3, maxima.get(phase) / 1e3);
+            }
+        }
+    }
+
+    // Writes the histograms to -Ddk.profile.out (target/frame-profile.csv by default) when the JVM exits.
+    public static void dumpOnExit() {
+        if (!ENABLED) {
+            return;
+        }
+        Path file = Paths.get(System.getProperty("dk.profile.out", "target/frame-profile.csv"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeCsv(file);
+            } catch (IOException ex) {
+                System.err.println("Could not write " + file + ": " + ex);
+            }
+        }));
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int mantissa = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return (exponent - 2) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        long width = 1L << (exponent - 3);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+}
+
+
+//PhaseEvent Class
+// JFR event for one profiled phase; the event's own timestamp is when the phase ended.
+@Name("donkeykong.Phase")
+@Label("Frame Phase")
+@Category("Donkey Kong")
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
+
+
+//KeyMask Class
+class KeyMask {
+    public static final Keys[] KEYS = {Keys.LEFT, Keys.RIGHT, Keys.UP, Keys.DOWN, Keys.SPACE, Keys.ENTER};
+
+    public static int bit(Keys key) {
+        switch (key) {
+            case LEFT:
+                return 1;
+            case RIGHT:
+                return 1 << 1;
+            case UP:
+                return 1 << 2;
+            case DOWN:
+                return 1 << 3;
+            case SPACE:
+                return 1 << 4;
+            case ENTER:
+                return 1 << 5;
+            default:
+                return 0;
+        }
+    }
+
+    // Packs the keys held down into the low bits and the keys pressed this tick above them.
+    public static int capture(InputSource input) {
+        int down = 0;
+        int pressed = 0;
+        for (Keys key : KEYS) {
+            if (input.isDown(key)) {
+                down |= bit(key);
+            }
+            if (input.wasPressed(key)) {
+                pressed |= bit(key);
+            }
+        }
+        return down | pressed << PRESSED_SHIFT;
+    }
+
+    public static final int PRESSED_SHIFT = 6;
+
+    public static Keys parse(String name) {
+        for (Keys key : KEYS) {
+            if (key.name().equalsIgnoreCase(name)) {
+                return key;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key: " + name);
+    }
+}
+
+
+//ScriptedInput Class
+// Script lines are "<frame> KEY..." or "<from>-<to> KEY...", holding the keys down for those frames.
+class ScriptedInput implements SimulatedInput {
+    private final int[] masks;
+    private int frame = -1;
+    private int current;
+    private int previous;
+
+    public ScriptedInput(int[] masks) {
+        this.masks = masks;
+    }
+
+    public static ScriptedInput fromFile(String scriptFile) {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(scriptFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(-1);
+        }
+        return parse(lines);
+    }
+
+    // Starts a fresh playback of the same script; the masks are shared, not copied.
+    public ScriptedInput copy() {
+        return new ScriptedInput(masks);
+    }
+
+    public static ScriptedInput parse(List<String> lines) {
+        int length = 0;
+        List<int[]> spans = new ArrayList<>();
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            String[] range = parts[0].split("-");
+            int from = Integer.parseInt(range[0]);
+            int to = range.length == 2 ? Integer.parseInt(range[1]) : from;
+            int mask = 0;
+            for (int i = 1; i < parts.length; i++) {
+                mask |= KeyMask.bit(KeyMask.parse(parts[i]));
+            }
+            spans.add(new int[]{from, to, mask});
+            length = Math.max(length, to + 1);
+        }
+
+        int[] masks = new int[length];
+        for (int[] span : spans) {
+            for (int f = span[0]; f <= span[1]; f++) {
+                masks[f] |= span[2];
+            }
+        }
+        return new ScriptedInput(masks);
+    }
+
+    // Moves on to the next frame of the script; frames past the end have no keys down.
+    @Override
+    public void advance() {
+        frame++;
+        previous = current;
+        current = frame < masks.length ? masks[frame] : 0;
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return (current & KeyMask.bit(key)) != 0;
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        int bit = KeyMask.bit(key);
+        return (current & bit) != 0 && (previous & bit) == 0;
+    }
+}
+
+
+//InputRecorder Class
+// Records the keys consumed on every gameplay tick. Each tick is a KeyMask.capture value and
+// consecutive equal ticks are stored as one (value, run length) pair, run length as a varint.
+class InputRecorder implements Closeable {
+    public static final int MAGIC = 0x444B5231; // "DKR1"
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(8192);
+    private int value = -1;
+    private int run;
+
+    public InputRecorder(Path file, int tickRate) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(tickRate);
+    }
+
+    public void record(InputSource input) throws IOException {
+        int tick = KeyMask.capture(input);
+        if (tick == value) {
+            run++;
+            return;
+        }
+        writeRun();
+        value = tick;
+        run = 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeRun();
+        drain();
+        channel.close();
+    }
+
+    private void writeRun() throws IOException {
+        if (run == 0) {
+            return;
+        }
+        if (buffer.remaining() < 7) {
+            drain();
+        }
+        buffer.putShort((short) value);
+        int remaining = run;
+        while (remaining >= 0x80) {
+            buffer.put((byte) (remaining & 0x7F | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+        run = 0;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+
+//InputReplay Class
+// Plays back an InputRecorder file through a memory-mapped buffer, one tick per advance().
+// Ticks past the end of the recording have no keys down.
+class InputReplay implements SimulatedInput {
+    private final MappedByteBuffer data;
+    private final int tickRate;
+    private int value;
+    private int remaining;
+
+    private InputReplay(MappedByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.remaining() < 8 || data.getInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input recording");
+        }
+        tickRate = data.getInt();
+    }
+
+    public static InputReplay open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new InputReplay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    @Override
+    public void advance() {
+        while (remaining == 0) {
+            if (!data.hasRemaining()) {
+                value = 0;
+                return;
+            }
+            value = data.getShort() & 0xFFFF;
+            int run = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get();
+                run |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            remaining = run;
+        }
+        remaining--;
+    }
+
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return (value & KeyMask.bit(key)) != 0;
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        return (value >>> KeyMask.PRESSED_SHIFT & KeyMask.bit(key)) != 0;
+    }
+}
+
+
+//RandomInput Class
+// Holds a random set of movement keys for a random number of ticks, then picks again.
+// Jumps are pressed at random. The same seed always produces the same input.
+class RandomInput implements SimulatedInput {
+    private static final Keys[] MOVES = {Keys.LEFT, Keys.RIGHT, Keys.UP, Keys.DOWN};
+
+    private final SplittableRandom random;
+    private int held;
+    private int remaining;
+    private int current;
+    private int previous;
+
+    public RandomInput(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public void advance() {
+        if (remaining-- <= 0) {
+            held = random.nextInt(3) == 0 ? 0 : KeyMask.bit(MOVES[random.nextInt(MOVES.length)]);
+            remaining = 10 + random.nextInt(110);
+        }
+        previous = current;
+        current = held;
+        if (random.nextInt(40) == 0) {
+            current |= KeyMask.bit(Keys.SPACE);
+        }
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return (current & KeyMask.bit(key)) != 0;
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        int bit = KeyMask.bit(key);
+        return (current & bit) != 0 && (previous & bit) == 0;
+    }
+}
+
+
+//AgentInput Class
+// Plays the game by itself: fetches the hammer, then heads for Donkey Kong. Each tick it plans
+// over the level's NavGraph from wherever Mario is, and while he has no hammer it rolls the
+// barrels around him forward the way RollerSystem will, to jump them or wait for them to pass.
+class AgentInput implements SimulatedInput {
+    // how far ahead barrels are watched, in ticks; a little longer than a jump
+    private static final int LOOKAHEAD = 60;
+    // a hit further off than this can still be dodged next tick
+    private static final int DODGE_TICKS = 3;
+    // backing off is only ever for a run-up, so it's judged over this many ticks of walking
+    private static final int RUN_UP = 10;
+    private static final double WATCH_DISTANCE = 300;
+    private static final double ARRIVED = ClimberSystem.SPEED / 2;
+    private static final int LEFT = KeyMask.bit(Keys.LEFT);
+    private static final int RIGHT = KeyMask.bit(Keys.RIGHT);
+    private static final int UP = KeyMask.bit(Keys.UP);
+    private static final int DOWN = KeyMask.bit(Keys.DOWN);
+    private static final int SPACE = KeyMask.bit(Keys.SPACE);
+    // Mario's height above where he took off after each tick of a jump, which lands on tick JUMP_TICKS
+    private static final double[] JUMP_RISE = new double[LOOKAHEAD + 1];
+    private static final int JUMP_TICKS = jumpRise(JUMP_RISE);
+
+    private final GameWorld world;
+    private final List<Barrel> nearby = new ArrayList<>();
+    // where nearby barrel b will be after t ticks is [b * (LOOKAHEAD + 1) + t]
+    private double[] trackX = new double[0];
+    private double[] trackY = new double[0];
+    // what to try instead of the plan, best first
+    private final int[] options = new int[5];
+    private NavGraph graph;
+    private GeometryIndex platforms;
+    private int graphVersion = -1;
+    private int current;
+    private int previous;
+    // the keys held through a climb or a jump until it's over
+    private int holding;
+    private long plans;
+    private long planNanos;
+
+    public AgentInput(GameWorld world) {
+        this.world = world;
+    }
+
+    private static int jumpRise(double[] rise) {
+        double y = 0;
+        double velocityY = ClimberSystem.JUMP_VELOCITY;
+        for (int t = 2; t < rise.length; t++) {
+            velocityY += Mario.GRAVITY;
+            y += velocityY;
+            if (y >= 0) {
+                return t;
+            }
+            rise[t] = -y;
+        }
+        return rise.length;
+    }
+
+    @Override
+    public void advance() {
+        previous = current;
+        current = decide();
+    }
+
+    private int decide() {
+        Mario mario = world.getMario();
+        if (mario.isClimbing()) {
+            if (!mario.hasHammer() && watch(mario)) {
+                // a ladder only goes two ways, and letting go would drop him
+                int reverse = holding ^ (UP | DOWN);
+                if (firstHit(mario, -1, reverse, true) > firstHit(mario, -1, holding, true)) {
+                    holding = reverse;
+                }
+            }
+            return holding;
+        }
+        if (mario.isInAir() || !mario.isOnPlatform()) {
+            return holding & (LEFT | RIGHT);
+        }
+        holding = 0;
+
+        if (graph == null || graphVersion != world.getLevelVersion()) {
+            graph = NavGraph.build(world.getPlatforms(), world.getLadders());
+            platforms = GeometryIndex.ofPlatforms(world.getPlatforms());
+            graphVersion = world.getLevelVersion();
+        }
+        EntityView target = world.getHammer().isCollected() ? world.getDonkey() : world.getHammer();
+        double x = mario.getX();
+        int span = graph.spanAt(x, mario.getY() + ClimberSystem.BODY_HEIGHT);
+        if (span < 0) {
+            // just walked off an edge and hasn't started falling yet
+            return current & (LEFT | RIGHT);
+        }
+        long start = System.nanoTime();
+        boolean planned = graph.aim(target.getX(), target.getY(), target.getWidth(), target.getHeight())
+                && graph.plan(span, x);
+        planNanos += System.nanoTime() - start;
+        plans++;
+        if (!planned) {
+            return 0;
+        }
+
+        int keys = stepKeys(x);
+        if (!mario.hasHammer()) {
+            keys = dodge(mario, span, keys);
+        }
+        if ((keys & SPACE) != 0) {
+            holding = keys & (LEFT | RIGHT);
+        } else if ((keys & (UP | DOWN)) != 0) {
+            holding = keys;
+        }
+        return keys;
+    }
+
+    // Walks to where the plan's first step starts, then takes it.
+    private int stepKeys(double x) {
+        double stepX = graph.getStepX();
+        int action = graph.getStepAction();
+        if (Math.abs(stepX - x) > ARRIVED) {
+            return stepX < x ? LEFT : RIGHT;
+        }
+        int direction = graph.getStepDirection() < 0 ? LEFT : RIGHT;
+        switch (action) {
+            case NavGraph.CLIMB_UP:
+                return UP;
+            case NavGraph.CLIMB_DOWN:
+                return DOWN;
+            case NavGraph.FALL:
+                return direction;
+            case NavGraph.JUMP:
+                return SPACE | direction;
+            default:
+                return graph.isGoalJump() ? SPACE : 0;
+        }
+    }
+
+    // Keeps the planned keys unless a barrel would hit Mario; then jumps over it, backs off or
+    // waits, whichever stays clear longest.
+    private int dodge(Mario mario, int span, int keys) {
+        if (!watch(mario)) {
+            return keys;
+        }
+        int planned = firstHit(mario, span, keys, true);
+        if (planned > LOOKAHEAD) {
+            return keys;
+        }
+
+        int forward = (keys & LEFT) != 0 ? LEFT : (keys & RIGHT) != 0 ? RIGHT : 0;
+        int back = forward == LEFT ? RIGHT : forward == RIGHT ? LEFT : 0;
+        int bestKeys = keys;
+        int best = planned > DODGE_TICKS ? LOOKAHEAD : planned;
+        if (forward == 0) {
+            options[0] = SPACE;
+            options[1] = SPACE | LEFT;
+            options[2] = SPACE | RIGHT;
+            options[3] = LEFT;
+            options[4] = RIGHT;
+        } else {
+            // backing off first leaves room for a run-up over barrels that aren't moving
+            options[0] = SPACE | forward;
+            options[1] = back;
+            options[2] = 0;
+            options[3] = SPACE;
+            options[4] = SPACE | back;
+        }
+        for (int option : options) {
+            int hit = firstHit(mario, span, option, option == keys);
+            if (hit > best) {
+                best = hit;
+                bestKeys = option;
+            }
+        }
+        return bestKeys;
+    }
+
+    // Finds the barrels near Mario and predicts where they go; false if there are none.
+    private boolean watch(Mario mario) {
+        double x = mario.getX();
+        double y = mario.getY();
+        world.queryBarrels(x - WATCH_DISTANCE, y - WATCH_DISTANCE, x + WATCH_DISTANCE, y + WATCH_DISTANCE, nearby);
+        if (nearby.isEmpty()) {
+            return false;
+        }
+        predict();
+        return true;
+    }
+
+    // Rolls each nearby barrel through the lookahead: rollers fall, land and turn around as in
+    // RollerSystem.roll, and anything else keeps its velocity.
+    private void predict() {
+        int n = nearby.size() * (LOOKAHEAD + 1);
+        if (trackX.length < n) {
+            trackX = new double[n * 2];
+            trackY = new double[n * 2];
+        }
+        for (int b = 0; b < nearby.size(); b++) {
+            Barrel barrel = nearby.get(b);
+            boolean rolling = barrel.isRolling();
+            double width = barrel.getWidth();
+            double height = barrel.getHeight();
+            double x = barrel.getX();
+            double y = barrel.getY();
+            double velocityX = barrel.getVelocityX();
+            double velocityY = barrel.getVelocityY();
+            int track = b * (LOOKAHEAD + 1);
+            for (int t = 1; t <= LOOKAHEAD; t++) {
+                if (rolling) {
+                    velocityY += Barrel.GRAVITY;
+                }
+                double nextX = x + velocityX;
+                double nextY = y + velocityY;
+                double landing = rolling ? platforms.firstTop(nextX, nextX + width, y + height, nextY + height) : Double.NaN;
+                if (!Double.isNaN(landing)) {
+                    if (velocityY > RollerSystem.TURN_AROUND_SPEED) {
+                        velocityX = -velocityX;
+                    }
+                    nextY = landing - height;
+                    velocityY = 0;
+                }
+                x = nextX;
+                y = nextY;
+                trackX[track + t] = x;
+                trackY[track + t] = y;
+            }
+        }
+    }
+
+    // The first tick within the lookahead that a barrel touches Mario if he holds keys, or
+    // LOOKAHEAD + 1. Anything but the plan stops after a jump or a run-up and stands, and
+    // running out of span on the way counts as a hit.
+    private int firstHit(Mario mario, int span, int keys, boolean planned) {
+        double speed = (keys & LEFT) != 0 ? -ClimberSystem.SPEED : (keys & RIGHT) != 0 ? ClimberSystem.SPEED : 0;
+        boolean jump = (keys & SPACE) != 0;
+        double climb = (keys & UP) != 0 ? -ClimberSystem.CLIMB_SPEED : (keys & DOWN) != 0 ? ClimberSystem.CLIMB_SPEED : 0;
+        int moving = jump ? JUMP_TICKS : planned ? LOOKAHEAD : RUN_UP;
+        double x = mario.getX();
+        double y = mario.getY();
+        for (int t = 1; t <= LOOKAHEAD; t++) {
+            if (t <= moving) {
+                x += speed;
+            }
+            double marioY = jump ? y - JUMP_RISE[t] : y + climb * t;
+            if (!planned && (!jump || t == JUMP_TICKS) && !graph.supports(span, x)) {
+                return t;
+            }
+            for (int i = 0, n = nearby.size(); i < n; i++) {
+                Barrel barrel = nearby.get(i);
+                int track = i * (LOOKAHEAD + 1) + t;
+                if (GameUtils.isColliding(x, marioY, mario.getWidth(), mario.getHeight(),
+                        trackX[track], trackY[track], barrel.getWidth(), barrel.getHeight())) {
+                    return t;
+                }
+            }
+        }
+        return LOOKAHEAD + 1;
+    }
+
+    @Override
+    public boolean isDown(Keys key) {
+        return (current & KeyMask.bit(key)) != 0;
+    }
+
+    @Override
+    public boolean wasPressed(Keys key) {
+        int bit = KeyMask.bit(key);
+        return (current & bit) != 0 && (previous & bit) == 0;
+    }
+
+    public String summary() {
+        String size = graph == null ? "no level" : String.format("%d spans, %d waypoints, %d edges",
+                graph.getSpanCount(), graph.getWaypointCount(), graph.getEdgeCount());
+        return String.format("agent: %s; %d plans, %.2f us/plan", size, plans, plans == 0 ? 0 : planNanos / 1e3 / plans);
+    }
+}
+
+//GameResult Class
+class GameResult {
+    private final int score;
+    private final boolean won;
+    private final int frames;
+
+    public GameResult(int score, boolean won, int frames) {
+        this.score = score;
+        this.won = won;
+        this.frames = frames;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public boolean isWon() {
+        return won;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+}
+
+
+//HeadlessSimulation Class
+// Runs the gameplay loop without a window: java HeadlessSimulation [script|agent] [maxFrames]
+// With -Ddk.audio.wav=<file> the game's sound is mixed into that file as it plays.
+class HeadlessSimulation {
+    public static void main(String[] args) {
+        Properties gameProps = IOUtils.readPropertiesFile("res/app.properties");
+        int frameLimit = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+        GameConfig config = GameConfig.from(gameProps);
+        GameWorld world = new GameWorld(config);
+        AgentInput agent = args.length > 0 && args[0].equals("agent") ? new AgentInput(world) : null;
+        SimulatedInput input = agent != null ? agent
+                : args.length > 0 ? openInput(args[0]) : new ScriptedInput(new int[0]);
+        AudioEngine audio = null;
+        String wav = System.getProperty("dk.audio.wav");
+        if (wav != null) {
+            try {
+                audio = AudioEngine.render(config, Paths.get(wav));
+                world.setEventListener(audio);
+            } catch (IOException ex) {
+                System.err.println("Not rendering audio: " + ex);
+            }
+        }
+        FrameProfiler.dumpOnExit();
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        GameResult result = play(world, input, frameLimit);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = allocatedBytes() - startBytes;
+        if (audio != null) {
+            audio.close();
+            System.out.println(audio.summary());
+        }
+        if (agent != null) {
+            System.out.println(agent.summary());
+        }
+
+        System.out.println("frames=" + result.getFrames()
+                + " score=" + result.getScore()
+                + " gameOver=" + (result.getFrames() < frameLimit)
+                + " hammer=" + world.getMario().hasHammer());
+        System.out.printf("%.0f frames/s, %.1f bytes allocated/frame%n",
+                result.getFrames() / seconds, (double) bytes / result.getFrames());
+    }
+
+    // Recordings (.dkr) replay as fast as the simulation runs; anything else is read as a script.
+    private static SimulatedInput openInput(String file) {
+        if (file.endsWith(".dkr")) {
+            try {
+                return InputReplay.open(Paths.get(file));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.exit(-1);
+            }
+        }
+        return ScriptedInput.fromFile(file);
+    }
+
+    // Plays one game from the world's current state until it ends or frameLimit frames have run.
+    public static GameResult play(GameWorld world, SimulatedInput input, int frameLimit) {
+        int frames = 0;
+        boolean running = true;
+        while (running && frames < frameLimit) {
+            input.advance();
+            running = world.update(input);
+            frames++;
+        }
+        return new GameResult(world.getScoreManager().getFinalScore(), world.isWon(), frames);
+    }
+
+    // Bytes allocated so far by the current thread, or 0 when the JVM can't report it.
+    public static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
+
+
+//BatchRunner Class
+// Plays many independent headless games in parallel and writes a summary report.
+// java BatchRunner [--games N] [--threads T] [--seed S] [--script file] [--player random|agent] [--frames N]
+//                   [--out file] [--scores file]
+class BatchRunner {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int games = Integer.parseInt(options.getOrDefault("games", "1000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        int frameLimit = Integer.parseInt(options.getOrDefault("frames", Integer.toString(Integer.MAX_VALUE)));
+        String script = options.get("script");
+        boolean agent = options.getOrDefault("player", "random").equals("agent");
+        String out = options.getOrDefault("out", "batch-report.txt");
+
+        GameConfig config = GameConfig.from(IOUtils.readPropertiesFile(options.getOrDefault("config", "res/app.properties")));
+        ScriptedInput scripted = script == null ? null : ScriptedInput.fromFile(script);
+
+        long start = System.nanoTime();
+        GameResult[] results = run(config, games, threads, frameLimit, (game, world) -> scripted != null
+                ? scripted.copy() : agent ? new AgentInput(world) : new RandomInput(seed + game));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String report = summarise(results, threads, seconds);
+        try (Writer writer = new FileWriter(out)) {
+            writer.write(report);
+        }
+        System.out.print(report);
+
+        String scores = options.get("scores");
+        if (scores != null) {
+            try (ScoreStore store = ScoreStore.open(Paths.get(scores), 4096)) {
+                for (GameResult result : results) {
+                    store.append(result.getScore(), result.isWon(), result.getFrames());
+                }
+                System.out.println("logged " + results.length + " scores to " + scores + " (" + store.size() + " total)");
+            }
+        }
+    }
+
+    // Each game gets its own world and input; the config is immutable and shared by all of them.
+    public static GameResult[] run(GameConfig config, int games, int threads, int frameLimit,
+                                   IntFunction<SimulatedInput> inputs) throws Exception {
+        return run(config, games, threads, frameLimit, (game, world) -> inputs.apply(game));
+    }
+
+    // For inputs that watch the world they play, like AgentInput.
+    public static GameResult[] run(GameConfig config, int games, int threads, int frameLimit,
+                                   BiFunction<Integer, GameWorld, SimulatedInput> inputs) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(() -> IntStream.range(0, games).parallel()
+                    .mapToObj(game -> {
+                        GameWorld world = new GameWorld(config);
+                        return HeadlessSimulation.play(world, inputs.apply(game, world), frameLimit);
+                    })
+                    .toArray(GameResult[]::new)).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static String summarise(GameResult[] results, int threads, double seconds) {
+        int games = results.length;
+        int[] scores = new int[games];
+        long totalScore = 0;
+        long totalFrames = 0;
+        int minFrames = Integer.MAX_VALUE;
+        int maxFrames = 0;
+        int wins = 0;
+        for (int i = 0; i < games; i++) {
+            GameResult result = results[i];
+            scores[i] = result.getScore();
+            totalScore += result.getScore();
+            totalFrames += result.getFrames();
+            minFrames = Math.min(minFrames, result.getFrames());
+            maxFrames = Math.max(maxFrames, result.getFrames());
+            if (result.isWon()) {
+                wins++;
+            }
+        }
+        Arrays.sort(scores);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("games            %d%n", games));
+        report.append(String.format("threads          %d%n", threads));
+        report.append(String.format("wall time        %.2f s%n", seconds));
+        report.append(String.format("throughput       %.1f games/s, %.0f frames/s%n", games / seconds, totalFrames / seconds));
+        if (games > 0) {
+            report.append(String.format("wins             %d (%.1f%%)%n", wins, 100.0 * wins / games));
+            report.append(String.format("score            mean %.1f, min %d, median %d, max %d%n",
+                    (double) totalScore / games, scores[0], scores[games / 2], scores[games - 1]));
+            report.append(String.format("frames survived  mean %.1f, min %d, max %d%n",
+                    (double) totalFrames / games, minFrames, maxFrames));
+        }
+        return report.toString();
+    }
+}
+
+
+//Entity Interface
+interface Entity {
+    // alpha is how far render time has moved from the previous tick towards the current one
+    void render(SpriteBatch batch, double alpha);
+}
+
+
+//Game State
+enum GameState {
+    HOME,
+    GAMEPLAY,
+    GAME_OVER
+}
+
+
+//GameUtils Class
+class GameUtils {
+    public static boolean isColliding(Point pos1, double width1, double height1,
+                                      Point pos2, double width2, double height2) {
+        return isColliding(pos1.x, pos1.y, width1, height1, pos2.x, pos2.y, width2, height2);
+    }
+
+    public static boolean isColliding(double x1, double y1, double width1, double height1,
+                                      double x2, double y2, double width2, double height2) {
+        return x1 < x2 + width2 &&
+                x1 + width1 > x2 &&
+                y1 < y2 + height2 &&
+                y1 + height1 > y2;
+    }
+
+    public static double lerp(double from, double to, double alpha) {
+        return from + (to - from) * alpha;
+    }
+
+    public static int getIntProperty(Properties props, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(props.getProperty(key));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static double getDoubleProperty(Properties props, String key, double defaultValue) {
+        try {
+            return Double.parseDouble(props.getProperty(key));
+        } catch (NumberFormatException | NullPointerException e) {
+            return defaultValue;
+        }
+    }
+}
+
+
+//Hammer Class
+class Hammer extends EntityView {
+    private static final String IMAGE_FILE = "res/hammer.png";
+    private static final int COMPONENTS = EntityStore.POSITION | EntityStore.COLLIDER | EntityStore.SPRITE;
+
+    public Hammer(EntityStore store, GameConfig config) {
+        super(store, store.create(COMPONENTS));
+        store.setView(index, this);
+        reset(config);
+    }
+
+    public Point getPosition() {
+        return new Point(getX(), getY());
+    }
+
+    // A collected hammer has neither a sprite nor a collider any more.
+    public boolean isCollected() {
+        return !store.has(index, EntityStore.COLLIDER);
+    }
+
+    public void reset(GameConfig config) {
+        int i = index;
+        store.mask[i] = COMPONENTS;
+        store.x[i] = config.getHammerX();
+        store.y[i] = config.getHammerY();
+        store.previousX[i] = store.x[i];
+        store.previousY[i] = store.y[i];
+        store.width[i] = 32;
+        store.height[i] = 32;
+        store.sprite[i] = EntityStore.sprite(IMAGE_FILE);
+    }
+
+
+    public void collect() {
+        store.mask[index] &= ~(EntityStore.SPRITE | EntityStore.COLLIDER);
+    }
+}
+
+
+//IOUtils Class
+class IOUtils {
+
+    public static Properties readPropertiesFile(String configFile) {
+        Properties appProps = null;
+        try {
+            appProps = loadPropertiesFile(configFile);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(-1);
+        }
+
+        return appProps;
+    }
+
+    public static Properties loadPropertiesFile(String configFile) throws IOException {
+        Properties appProps = new Properties();
+        try (InputStream in = new FileInputStream(configFile)) {
+            appProps.load(in);
+        }
+        return appProps;
+    }
+
+    public static String writeTempImage(BufferedImage image, String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".png");
+        file.deleteOnExit();
+        ImageIO.write(image, "png", file);
+        return file.getPath();
+    }
+
+    private static final Map<String, double[]> imageSizes = new ConcurrentHashMap<>();
+
+    // Reads {width, height} from the image header so sizes are known without decoding the pixels.
+    public static double[] readImageSize(String imageFile) {
+        return imageSizes.computeIfAbsent(imageFile, file -> {
+            try (ImageInputStream in = ImageIO.createImageInputStream(new File(file))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    throw new IOException("Unsupported image: " + file);
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in);
+                    return new double[]{reader.getWidth(0), reader.getHeight(0)};
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+}
+
+
+//AssetLoader Class
+// Decodes images on a few worker threads at startup, so they aren't decoded one after another
+// on the main thread. Only the pixels are decoded here: Bagel images and fonts
+// are textures and still have to be made on the thread that owns the window.
+class AssetLoader {
+    private static final Map<String, FutureTask<BufferedImage>> images = new ConcurrentHashMap<>();
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), task -> {
+                Thread thread = new Thread(task, "asset-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Queues the images for decoding; see image().
+    public static void preload(String[] files) {
+        for (String file : files) {
+            FutureTask<BufferedImage> task = new FutureTask<>(() -> decode(file));
+            if (images.putIfAbsent(file, task) == null) {
+                workers.execute(task);
+            }
+        }
+    }
+
+    public static <T> FutureTask<T> submit(Callable<T> work) {
+        FutureTask<T> task = new FutureTask<>(work);
+        workers.execute(task);
+        return task;
+    }
+
+    // The result of task. If no worker has started it yet it runs here instead, so tasks can
+    // wait on each other without tying up the pool.
+    public static <T> T join(FutureTask<T> task) throws IOException {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // The decoded image, decoding it on this thread if it wasn't preloaded. Callers only read it.
+    public static BufferedImage image(String file) throws IOException {
+        return join(images.computeIfAbsent(file, path -> new FutureTask<>(() -> decode(path))));
+    }
+
+    // Drops the decoded image so its pixels can be collected; a later image() decodes it again.
+    public static void evict(String file) {
+        images.remove(file);
+    }
+
+    private static BufferedImage decode(String file) throws IOException {
+        BufferedImage image = ImageIO.read(new File(file));
+        if (image == null) {
+            throw new IOException("Unsupported image: " + file);
+        }
+        return image;
+    }
+}
+
+
+//StartupTimer Class
+// Measures time to first frame for tracking cold starts. With -Ddk.startup.exit=true the game
+// closes after its first frame, which is how the class-data-sharing archive is trained.
+class StartupTimer {
+    private static final boolean EXIT_AFTER_FIRST_FRAME = Boolean.getBoolean("dk.startup.exit");
+    private static long mainNanos;
+    private static long mainMillis = -1;
+    private static long firstFrameMillis = -1;
+
+    public static void mainStarted() {
+        mainNanos = System.nanoTime();
+    }
+
+    public static void firstFrame() {
+        if (firstFrameMillis >= 0) {
+            return;
+        }
+        // uptime is read only now so the management classes don't load before the first frame
+        firstFrameMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        mainMillis = firstFrameMillis - (System.nanoTime() - mainNanos) / 1_000_000;
+        System.out.println(summary());
+        if (EXIT_AFTER_FIRST_FRAME) {
+            Window.close();
+        }
+    }
+
+    public static String summary() {
+        if (firstFrameMillis < 0) {
+            return "no frame drawn";
+        }
+        return "first frame after " + firstFrameMillis + " ms (main after " + mainMillis + " ms)";
+    }
+}
+
+
+//AssetRegistry Class
+// Loads each image and font once and shares it between everyone who asks for it. Callers
+// release what they acquire; an asset is disposed of when its last user releases it. Counts
+// change inside the map's per-key compute, so acquiring and releasing from several threads
+// can't lose an update.
+class AssetRegistry {
+    private static final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    private static class Asset {
+        private final Object handle;
+        private final String file;
+        private final long bytes;
+        // written under the map's lock for the key, read without it by references()
+        private volatile int references;
+
+        Asset(Object handle, String file, long bytes) {
+            this.handle = handle;
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    public static Image acquireImage(String file) {
+        return (Image) assets.compute(file, (key, asset) -> {
+            if (asset == null) {
+                double[] size = IOUtils.readImageSize(file);
+                // decoded RGBA texture
+                asset = new Asset(new Image(file), file, (long) size[0] * (long) size[1] * 4);
+            }
+            asset.references++;
+            return asset;
+        }).handle;
+    }
+
+    public static Font acquireFont(String file, int size) {
+        return (Font) assets.compute(fontKey(file, size), (key, asset) -> {
+            if (asset == null) {
+                asset = new Asset(new Font(file, size), file, new File(file).length());
+            }
+            asset.references++;
+            return asset;
+        }).handle;
+    }
+
+    public static void releaseImage(String file) {
+        release(file);
+    }
+
+    public static void releaseFont(String file, int size) {
+        release(fontKey(file, size));
+    }
+
+    public static int residentCount() {
+        return assets.size();
+    }
+
+    public static long residentBytes() {
+        long total = 0;
+        for (Asset asset : assets.values()) {
+            total += asset.bytes;
+        }
+        return total;
+    }
+
+    public static int references(String key) {
+        Asset asset = assets.get(key);
+        return asset == null ? 0 : asset.references;
+    }
+
+    public static String summary() {
+        return String.format("%d assets resident, %.1f KB", residentCount(), residentBytes() / 1024.0);
+    }
+
+    private static void release(String key) {
+        assets.computeIfPresent(key, (k, asset) -> {
+            if (--asset.references > 0) {
+                return asset;
+            }
+            dispose(asset);
+            return null;
+        });
+    }
+
+    // Bagel has no call to free a texture or font early; it goes once nothing refers to the handle.
+    // What can be freed now is the decoded copy of an image the AssetLoader kept for the atlas.
+    private static void dispose(Asset asset) {
+        if (asset.handle instanceof Image) {
+            AssetLoader.evict(asset.file);
+        }
+    }
+
+    private static String fontKey(String file, int size) {
+        return file + "@" + size;
+    }
+}
+
+
+//TextureAtlas Class
+// Packs sprite images into a single texture at startup. Bagel only loads textures from files,
+// so the packed sheet is written to a temporary PNG and loaded from there.
+class TextureAtlas {
+    private final String textureFile;
+    private final Map<String, DrawOptions> regions = new HashMap<>();
+
+    private TextureAtlas(String textureFile) {
+        this.textureFile = textureFile;
+    }
+
+    // Simple shelf packer: tallest sprites first, rows no wider than maxWidth.
+    public static TextureAtlas build(String[] files, int maxWidth) throws IOException {
+        BufferedImage[] images = new BufferedImage[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            images[i] = AssetLoader.image(files[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> images[b].getHeight() - images[a].getHeight());
+
+        int[][] placement = new int[files.length][];
+        int x = 0;
+        int y = 0;
+        int shelfHeight = 0;
+        int width = 0;
+        for (int i : order) {
+            if (x > 0 && x + images[i].getWidth() > maxWidth) {
+                x = 0;
+                y += shelfHeight;
+                shelfHeight = 0;
+            }
+            placement[i] = new int[]{x, y};
+            x += images[i].getWidth();
+            width = Math.max(width, x);
+            shelfHeight = Math.max(shelfHeight, images[i].getHeight());
+        }
+
+        BufferedImage sheet = new BufferedImage(width, y + shelfHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sheet.createGraphics();
+        for (int i = 0; i < files.length; i++) {
+            g.drawImage(images[i], placement[i][0], placement[i][1], null);
+        }
+        g.dispose();
+
+        TextureAtlas atlas = new TextureAtlas(IOUtils.writeTempImage(sheet, "dk-atlas"));
+        for (int i = 0; i < files.length; i++) {
+            atlas.regions.put(files[i], new DrawOptions().setSection(placement[i][0], placement[i][1],
+                    images[i].getWidth(), images[i].getHeight()));
+        }
+        return atlas;
+    }
+
+    public String getTextureFile() {
+        return textureFile;
+    }
+
+    public DrawOptions region(String file) {
+        return regions.get(file);
+    }
+}
+
+
+//SpriteBatch Class
+// Queues sprite draws for a frame and submits them in order on flush. Sprites found in the atlas
+// share one texture; anything else falls back to its own image from the AssetRegistry.
+class SpriteBatch {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Image atlasTexture;
+    private final TextureAtlas atlas;
+    private final Map<String, Image> fallbackImages = new HashMap<>();
+
+    private Image[] textures = new Image[INITIAL_CAPACITY];
+    private DrawOptions[] sections = new DrawOptions[INITIAL_CAPACITY];
+    private double[] xs = new double[INITIAL_CAPACITY];
+    private double[] ys = new double[INITIAL_CAPACITY];
+    private int queued;
+
+    private double originX;
+    private double originY;
+
+    private Image boundTexture;
+    private int drawCalls;
+    private int textureBinds;
+    private long frames;
+    private long totalDrawCalls;
+    private long totalTextureBinds;
+
+    public SpriteBatch(TextureAtlas atlas) {
+        this.atlas = atlas;
+        this.atlasTexture = atlas == null ? null : AssetRegistry.acquireImage(atlas.getTextureFile());
+    }
+
+    // World position that lands on the window's top-left corner for the rest of the batch.
+    public void setOrigin(double x, double y) {
+        originX = x;
+        originY = y;
+    }
+
+    public void begin() {
+        queued = 0;
+        boundTexture = null;
+        drawCalls = 0;
+        textureBinds = 0;
+    }
+
+    public void draw(String file, double x, double y) {
+        DrawOptions section = atlas == null ? null : atlas.region(file);
+        if (section != null) {
+            queue(atlasTexture, section, x, y);
+        } else {
+            queue(fallbackImage(file), null, x, y);
+        }
+    }
+
+    public void draw(Image image, double x, double y) {
+        queue(image, null, x, y);
+    }
+
+    public void flush() {
+        for (int i = 0; i < queued; i++) {
+            if (textures[i] != boundTexture) {
+                boundTexture = textures[i];
+                textureBinds++;
+            }
+            if (sections[i] != null) {
+                textures[i].drawFromTopLeft(xs[i], ys[i], sections[i]);
+            } else {
+                textures[i].drawFromTopLeft(xs[i], ys[i]);
+            }
+            drawCalls++;
+        }
+        queued = 0;
+    }
+
+    public void end() {
+        flush();
+        frames++;
+        totalDrawCalls += drawCalls;
+        totalTextureBinds += textureBinds;
+    }
+
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public int getTextureBinds() {
+        return textureBinds;
+    }
+
+    public String summary() {
+        if (frames == 0) {
+            return "no frames rendered";
+        }
+        return String.format("%.1f draw calls/frame, %.1f texture binds/frame",
+                (double) totalDrawCalls / frames, (double) totalTextureBinds / frames);
+    }
+
+    private void queue(Image texture, DrawOptions section, double x, double y) {
+        if (queued == xs.length) {
+            int capacity = queued * 2;
+            textures = Arrays.copyOf(textures, capacity);
+            sections = Arrays.copyOf(sections, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        textures[queued] = texture;
+        sections[queued] = section;
+        xs[queued] = x - originX;
+        ys[queued] = y - originY;
+        queued++;
+    }
+
+    private Image fallbackImage(String file) {
+        Image image = fallbackImages.get(file);
+        if (image == null) {
+            image = AssetRegistry.acquireImage(file);
+            fallbackImages.put(file, image);
+        }
+        return image;
+    }
+}
+
+
+//Camera Class
+// The window's view onto the level. It centres on a target but stops at the level's edges, so a
+// level the size of the window never scrolls. Also counts what it culls.
+class Camera {
+    private final double viewWidth;
+    private final double viewHeight;
+    private double x;
+    private double y;
+
+    private int visible;
+    private int culled;
+    private long frames;
+    private long totalVisible;
+    private long totalCulled;
+
+    public Camera(double viewWidth, double viewHeight) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    public void follow(double targetX, double targetY, double levelWidth, double levelHeight) {
+        x = Math.max(0, Math.min(targetX - viewWidth / 2, levelWidth - viewWidth));
+        y = Math.max(0, Math.min(targetY - viewHeight / 2, levelHeight - viewHeight));
+    }
+
+    public boolean isVisible(double left, double top, double width, double height) {
+        if (left + width < x || left > x + viewWidth || top + height < y || top > y + viewHeight) {
+            culled++;
+            return false;
+        }
+        visible++;
+        return true;
+    }
+
+    public void endFrame() {
+        frames++;
+        totalVisible += visible;
+        totalCulled += culled;
+        visible = 0;
+        culled = 0;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public String summary() {
+        if (frames == 0) {
+            return "nothing culled";
+        }
+        return String.format("%.1f entities drawn/frame, %.1f culled/frame",
+                (double) totalVisible / frames, (double) totalCulled / frames);
+    }
+}
+
+
+//StaticLayer Class
+// Platforms and ladders never move, so they are painted once into a single image per level
+// and drawn with one call each frame.
+class StaticLayer {
+    private String file;
+    private Image image;
+
+    public void rebuild(List<Platform> platforms, List<Ladder> ladders, int width, int height) throws IOException {
+        BufferedImage layer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = layer.createGraphics();
+        for (Platform p : platforms) {
+            g.drawImage(AssetLoader.image(p.getImageFile()), (int) Math.round(p.getX()), (int) Math.round(p.getY()), null);
+        }
+        for (Ladder l : ladders) {
+            g.drawImage(AssetLoader.image(l.getImageFile()), (int) Math.round(l.getX()), (int) Math.round(l.getY()), null);
+        }
+        g.dispose();
+
+        String previous = file;
+        file = IOUtils.writeTempImage(layer, "dk-static");
+        image = AssetRegistry.acquireImage(file);
+        if (previous != null) {
+            AssetRegistry.releaseImage(previous);
+            new File(previous).delete();
+        }
+    }
+
+    public void render(SpriteBatch batch) {
+        batch.draw(image, 0, 0);
+    }
+}
+
+
+//WorldRenderer Class
+// Draws the gameplay scene: the cached static layer first, then the moving sprites in one batch.
+// If the atlas or static layer can't be built, it falls back to drawing each sprite on its own.
+class WorldRenderer {
+    static final String[] SPRITES = {
+            "res/barrel.png", "res/donkey_kong.png", "res/hammer.png", "res/ladder.png", "res/platform.png",
+            "res/mario_left.png", "res/mario_right.png", "res/mario_hammer_left.png", "res/mario_hammer_right.png"
+    };
+
+    private final int width;
+    private final int height;
+    private final SpriteBatch batch;
+    private final Camera camera;
+    private final StaticLayer staticLayer = new StaticLayer();
+    private int staticLevelVersion = -1;
+    private boolean staticLayerAvailable = true;
+
+    // Starts packing the sprite atlas on the asset loader's workers.
+    public static FutureTask<TextureAtlas> loadAtlas() {
+        AssetLoader.preload(SPRITES);
+        return AssetLoader.submit(() -> TextureAtlas.build(SPRITES, 2048));
+    }
+
+    public WorldRenderer(int width, int height, FutureTask<TextureAtlas> atlasTask) {
+        this.width = width;
+        this.height = height;
+        TextureAtlas atlas = null;
+        try {
+            atlas = AssetLoader.join(atlasTask);
+        } catch (IOException | UncheckedIOException ex) {
+            System.err.println("Drawing sprites individually, could not build texture atlas: " + ex);
+        }
+        batch = new SpriteBatch(atlas);
+        camera = new Camera(width, height);
+    }
+
+    public void render(GameWorld world, double alpha) {
+        long t = FrameProfiler.start();
+        Mario mario = world.getMario();
+        camera.follow(mario.getRenderX(alpha), mario.getRenderY(alpha), world.getLevelWidth(), world.getLevelHeight());
+        batch.setOrigin(camera.getX(), camera.getY());
+        batch.begin();
+        // streamed levels change as Mario moves, so their geometry is drawn sprite by sprite
+        if (staticLayerAvailable && !world.isStreamed() && world.getLevelVersion() != staticLevelVersion) {
+            try {
+                staticLayer.rebuild(world.getPlatforms(), world.getLadders(), width, height);
+                staticLevelVersion = world.getLevelVersion();
+            } catch (IOException ex) {
+                System.err.println("Drawing level geometry individually, could not build static layer: " + ex);
+                staticLayerAvailable = false;
+            }
+        }
+        if (staticLayerAvailable && !world.isStreamed()) {
+            staticLayer.render(batch);
+        } else {
+            world.renderStatic(batch, camera);
+        }
+        FrameProfiler.end(FrameProfiler.STATIC_GEOMETRY, t);
+
+        t = FrameProfiler.start();
+        world.renderDynamic(batch, alpha, camera);
+        batch.end();
+        camera.endFrame();
+        FrameProfiler.end(FrameProfiler.SPRITES, t);
+    }
+
+    public SpriteBatch getBatch() {
+        return batch;
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    public String summary() {
+        return batch.summary() + ", " + camera.summary();
+    }
+}
+
+
+//TextLabel Class
+// One line of screen text, laid out once. The text and its width are kept and only rebuilt when
+// the font, the text or the bound value changes, so a label that's unchanged since the last frame
+// costs a few compares. Message text comes straight from the message properties, so the check
+// is a reference compare until the strings themselves are swapped for another locale.
+class TextLabel {
+    private static long layouts;
+
+    private Font font;
+    private String text;
+    private String prefix;
+    private int value;
+    private double width;
+
+    public TextLabel set(Font font, String text) {
+        if (font != this.font || prefix != null || !text.equals(this.text)) {
+            this.font = font;
+            this.text = text;
+            prefix = null;
+            layout();
+        }
+        return this;
+    }
+
+    // Shows prefix, a space and value.
+    public TextLabel set(Font font, String prefix, int value) {
+        if (font != this.font || value != this.value || !prefix.equals(this.prefix)) {
+            this.font = font;
+            this.prefix = prefix;
+            this.value = value;
+            text = prefix + " " + value;
+            layout();
+        }
+        return this;
+    }
+
+    public void draw(double x, double y) {
+        font.drawString(text, x, y);
+    }
+
+    public void drawCentred(double centreX, double y) {
+        font.drawString(text, centreX - width / 2, y);
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    private void layout() {
+        width = font.getWidth(text);
+        layouts++;
+    }
+
+    public static String summary() {
+        return layouts + " text layouts";
+    }
+}
+
+
+//AudioEngine Class
+// Sound effects and music, mixed on a thread of their own. The game thread only writes event codes
+// into a single-producer single-consumer ring, so reporting an event never blocks or allocates.
+// The mixer starts a voice for each event, mixes the voices and the music into 16-bit stereo
+// blocks and hands them to a sink: OpenAL when playing live, or a WAV file when rendering offline.
+// Offline, one block is mixed per TICK, so the file lines up with the game's ticks.
+class AudioEngine implements GameEventListener, Closeable {
+    static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int LIVE_BLOCK_FRAMES = 512;
+    private static final int MAX_VOICES = 16;
+    private static final int QUEUE_SIZE = 1024;
+    private static final int TAIL_SECONDS = 2;
+
+    private final AudioSink sink;
+    private final boolean offline;
+    private final int blockFrames;
+    private final ShortBuffer[] sounds;
+    private final MusicStream music;
+    private final double volume;
+
+    // the ring: only the game thread writes tail, only the mixer writes head
+    private final int[] queue = new int[QUEUE_SIZE];
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long droppedEvents;
+
+    // mixer thread only
+    private final ShortBuffer[] voices = new ShortBuffer[MAX_VOICES];
+    private final int[] voicePositions = new int[MAX_VOICES];
+    private final int[] mix;
+    private final ByteBuffer block;
+    private long events;
+    private long framesMixed;
+
+    private final Thread mixer;
+    private volatile boolean closing;
+
+    private AudioEngine(AudioSink sink, boolean offline, int blockFrames, GameConfig config) throws IOException {
+        this.sink = sink;
+        this.offline = offline;
+        this.blockFrames = blockFrames;
+        volume = config.getAudioVolume();
+        sounds = SoundSynth.effects();
+        music = config.getMusicFile() == null ? null
+                : MusicStream.open(Paths.get(config.getMusicFile()), config.getMusicVolume());
+        mix = new int[blockFrames * CHANNELS];
+        block = ByteBuffer.allocateDirect(blockFrames * CHANNELS * 2).order(sink.order());
+        mixer = new Thread(this::mixLoop, "audio-mixer");
+        mixer.setDaemon(true);
+        if (!offline) {
+            mixer.setPriority(Thread.MAX_PRIORITY);
+        }
+        mixer.start();
+    }
+
+    // Plays through the default OpenAL device; null, with the reason on stderr, if there isn't one.
+    public static AudioEngine open(GameConfig config) {
+        AudioSink sink = null;
+        try {
+            sink = OpenAlSink.open();
+            return new AudioEngine(sink, false, LIVE_BLOCK_FRAMES, config);
+        } catch (IOException ex) {
+            System.err.println("Audio disabled: " + ex);
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    // Mixes into a WAV file instead, one tick of audio per TICK. Needs no audio device.
+    public static AudioEngine render(GameConfig config, Path file) throws IOException {
+        WavSink sink = new WavSink(file, SAMPLE_RATE, CHANNELS);
+        try {
+            return new AudioEngine(sink, true, SAMPLE_RATE / config.getTickRate(), config);
+        } catch (IOException ex) {
+            sink.close();
+            throw ex;
+        }
+    }
+
+    // Game thread. Live, a full ring drops the event; offline it waits, so the file stays in step.
+    @Override
+    public void onEvent(int event) {
+        if (event == TICK && !offline) {
+            return;
+        }
+        long t = tail.get();
+        while (t - head.get() == QUEUE_SIZE) {
+            if (!offline || closing) {
+                droppedEvents++;
+                return;
+            }
+            LockSupport.parkNanos(50_000);
+        }
+        queue[(int) t & (QUEUE_SIZE - 1)] = event;
+        tail.lazySet(t + 1);
+    }
+
+    // Stops the mixer once it has played what's queued; offline, the voices still sounding are
+    // rendered out first.
+    @Override
+    public void close() {
+        closing = true;
+        LockSupport.unpark(mixer);
+        try {
+            mixer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String summary() {
+        return String.format("%d sound events, %d dropped, %.1f s mixed", events, droppedEvents,
+                (double) framesMixed / SAMPLE_RATE);
+    }
+
+    private void mixLoop() {
+        try {
+            if (offline) {
+                mixOffline();
+            } else {
+                while (!closing) {
+                    for (long h = head.get(), t = tail.get(); h < t; h++) {
+                        start(queue[(int) h & (QUEUE_SIZE - 1)]);
+                        head.lazySet(h + 1);
+                    }
+                    mixBlock();
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Audio stopped: " + ex);
+        } finally {
+            try {
+                sink.close();
+                if (music != null) {
+                    music.close();
+                }
+            } catch (IOException ex) {
+                System.err.println("Could not close audio: " + ex);
+            }
+        }
+    }
+
+    private void mixOffline() throws IOException {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) {
+                // closing is read first, so the tail read after it sees every event
+                if (closing && h == tail.get()) {
+                    break;
+                }
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            int event = queue[(int) h & (QUEUE_SIZE - 1)];
+            head.lazySet(h + 1);
+            if (event == TICK) {
+                mixBlock();
+            } else {
+                start(event);
+            }
+        }
+        long tailFrames = (long) TAIL_SECONDS * SAMPLE_RATE;
+        for (long frames = 0; frames < tailFrames && isSounding(); frames += blockFrames) {
+            mixBlock();
+        }
+    }
+
+    private void start(int event) {
+        if (event != TICK && sounds[event] != null) {
+            startVoice(sounds[event]);
+            events++;
+        }
+    }
+
+    // A free voice, or else the one that has played longest.
+    private void startVoice(ShortBuffer sound) {
+        int voice = 0;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (voices[v] == null) {
+                voice = v;
+                break;
+            }
+            if (voicePositions[v] > voicePositions[voice]) {
+                voice = v;
+            }
+        }
+        voices[voice] = sound;
+        voicePositions[voice] = 0;
+    }
+
+    private boolean isSounding() {
+        for (ShortBuffer voice : voices) {
+            if (voice != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void mixBlock() throws IOException {
+        Arrays.fill(mix, 0);
+        if (music != null) {
+            music.mixInto(mix, blockFrames);
+        }
+        for (int v = 0; v < MAX_VOICES; v++) {
+            ShortBuffer sound = voices[v];
+            if (sound == null) {
+                continue;
+            }
+            int position = voicePositions[v];
+            int frames = Math.min(blockFrames, sound.limit() - position);
+            for (int f = 0; f < frames; f++) {
+                int sample = sound.get(position + f);
+                mix[2 * f] += sample;
+                mix[2 * f + 1] += sample;
+            }
+            voicePositions[v] = position + frames;
+            if (voicePositions[v] >= sound.limit()) {
+                voices[v] = null;
+            }
+        }
+        block.clear();
+        for (int sample : mix) {
+            long scaled = Math.round(sample * volume);
+            block.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled)));
+        }
+        block.flip();
+        sink.write(block);
+        framesMixed += blockFrames;
+    }
+}
+
+
+//SoundSynth Class
+// Makes the sound effects at startup, so there are no sample files to ship. Each is 16-bit mono
+// at the mixer's rate in a direct buffer, indexed by GameEventListener event.
+class SoundSynth {
+    public static ShortBuffer[] effects() {
+        ShortBuffer[] sounds = new ShortBuffer[GameEventListener.EVENT_COUNT];
+        sounds[GameEventListener.JUMP] = sweep(300, 700, 0.15, 0.4);
+        sounds[GameEventListener.HAMMER] = notes(new double[]{523, 659, 784, 1047}, 0.07, 0.4);
+        sounds[GameEventListener.BARREL_JUMPED] = sweep(880, 880, 0.06, 0.3);
+        sounds[GameEventListener.BARREL_SMASHED] = noise(0.25, 0.5);
+        sounds[GameEventListener.BARREL_THROWN] = sweep(120, 60, 0.2, 0.4);
+        sounds[GameEventListener.GAME_OVER] = notes(new double[]{392, 330, 262, 196}, 0.18, 0.4);
+        sounds[GameEventListener.GAME_WON] = notes(new double[]{523, 659, 784, 1047, 1319}, 0.12, 0.4);
+        return sounds;
+    }
+
+    // A square wave gliding from one pitch to another and fading out.
+    public static ShortBuffer sweep(double fromHz, double toHz, double seconds, double gain) {
+        ShortBuffer samples = allocate(seconds);
+        int n = samples.limit();
+        double phase = 0;
+        for (int i = 0; i < n; i++) {
+            double t = (double) i / n;
+            phase += (fromHz + (toHz - fromHz) * t) / AudioEngine.SAMPLE_RATE;
+            double square = phase % 1 < 0.5 ? 1 : -1;
+            samples.put(i, (short) (square * gain * (1 - t) * Short.MAX_VALUE));
+        }
+        return samples;
+    }
+
+    public static ShortBuffer notes(double[] hz, double noteSeconds, double gain) {
+        ShortBuffer samples = allocate(noteSeconds * hz.length);
+        int noteLength = samples.limit() / hz.length;
+        for (int note = 0; note < hz.length; note++) {
+            ShortBuffer tone = sweep(hz[note], hz[note], noteSeconds, gain);
+            for (int i = 0; i < noteLength && i < tone.limit(); i++) {
+                samples.put(note * noteLength + i, tone.get(i));
+            }
+        }
+        return samples;
+    }
+
+    // Decaying white noise, the same every run.
+    public static ShortBuffer noise(double seconds, double gain) {
+        ShortBuffer samples = allocate(seconds);
+        Random random = new Random(1);
+        int n = samples.limit();
+        for (int i = 0; i < n; i++) {
+            double envelope = Math.exp(-5.0 * i / n);
+            samples.put(i, (short) ((random.nextDouble() * 2 - 1) * gain * envelope * Short.MAX_VALUE));
+        }
+        return samples;
+    }
+
+    private static ShortBuffer allocate(double seconds) {
+        int frames = (int) (seconds * AudioEngine.SAMPLE_RATE);
+        return ByteBuffer.allocateDirect(frames * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+}
+
+
+//MusicStream Class
+// A 16-bit PCM WAV file looped behind the game. It's read from disk a chunk at a time on the
+// mixer thread rather than loaded whole.
+class MusicStream implements Closeable {
+    private final FileChannel channel;
+    private final long dataStart;
+    private final long dataEnd;
+    private final int channels;
+    private final double gain;
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(32 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long position;
+
+    private MusicStream(FileChannel channel, long dataStart, long dataEnd, int channels, double gain) {
+        this.channel = channel;
+        this.dataStart = dataStart;
+        this.dataEnd = dataEnd;
+        this.channels = channels;
+        this.gain = gain;
+        position = dataStart;
+        chunk.limit(0);
+    }
+
+    public static MusicStream open(Path file, double gain) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != WavSink.RIFF || header.getInt(8) != WavSink.WAVE) {
+                throw new IOException(file + " is not a WAV file");
+            }
+            // walk the chunks for the format and the samples
+            int channels = 0;
+            long offset = 12;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            while (offset + 8 <= channel.size()) {
+                chunkHeader.clear().limit(8);
+                readFully(channel, chunkHeader, offset);
+                int id = chunkHeader.getInt(0);
+                long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+                if (id == WavSink.FMT) {
+                    chunkHeader.clear().limit(16);
+                    readFully(channel, chunkHeader, offset + 8);
+                    channels = chunkHeader.getShort(2);
+                    int rate = chunkHeader.getInt(4);
+                    int bits = chunkHeader.getShort(14);
+                    if (chunkHeader.getShort(0) != 1 || bits != 16 || rate != AudioEngine.SAMPLE_RATE
+                            || channels < 1 || channels > 2) {
+                        throw new IOException(file + " is not 16-bit PCM at " + AudioEngine.SAMPLE_RATE + " Hz");
+                    }
+                } else if (id == WavSink.DATA && channels > 0) {
+                    long end = Math.min(offset + 8 + size, channel.size());
+                    return new MusicStream(channel, offset + 8, end, channels, gain);
+                }
+                offset += 8 + size + (size & 1);
+            }
+            throw new IOException(file + " has no samples");
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Adds frames of music to the interleaved stereo mix.
+    public void mixInto(int[] mix, int frames) throws IOException {
+        int frameBytes = channels * 2;
+        for (int f = 0; f < frames; f++) {
+            if (chunk.remaining() < frameBytes && !refill(frameBytes)) {
+                return;
+            }
+            int left = chunk.getShort();
+            int right = channels == 2 ? chunk.getShort() : left;
+            mix[2 * f] += (int) (left * gain);
+            mix[2 * f + 1] += (int) (right * gain);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Tops the chunk up to at least one frame, going back to the start at the end of the samples.
+    // False if there's nothing to play.
+    private boolean refill(int frameBytes) throws IOException {
+        if (dataEnd - dataStart < frameBytes) {
+            return false;
+        }
+        chunk.compact();
+        while (chunk.position() < frameBytes) {
+            if (position >= dataEnd) {
+                position = dataStart;
+            }
+            chunk.limit((int) Math.min(chunk.capacity(), chunk.position() + (dataEnd - position)));
+            int read = channel.read(chunk, position);
+            chunk.limit(chunk.capacity());
+            if (read <= 0) {
+                return false;
+            }
+            position += read;
+        }
+        chunk.flip();
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
+
+
+//AudioSink Interface
+// Where the mixer's blocks of interleaved 16-bit stereo go. write() may block until there's room.
+interface AudioSink extends Closeable {
+    ByteOrder order();
+
+    void write(ByteBuffer block) throws IOException;
+}
+
+
+//OpenAlSink Class
+// Streams blocks through a single OpenAL source with a few buffers queued, about 45 ms at the
+// mixer's block size, and blocks the mixer until the device has finished one.
+class OpenAlSink implements AudioSink {
+    private static final int BUFFERS = 4;
+
+    private final long device;
+    private final long context;
+    private final int source;
+    private final int[] buffers = new int[BUFFERS];
+    private int filled;
+
+    private OpenAlSink(long device, long context) {
+        this.device = device;
+        this.context = context;
+        source = AL10.alGenSources();
+        AL10.alGenBuffers(buffers);
+    }
+
+    public static OpenAlSink open() throws IOException {
+        long device;
+        try {
+            device = ALC10.alcOpenDevice((ByteBuffer) null);
+        } catch (LinkageError | RuntimeException ex) {
+            throw new IOException("OpenAL unavailable", ex);
+        }
+        if (device == 0) {
+            throw new IOException("no audio device");
+        }
+        ALCCapabilities deviceCaps = ALC.createCapabilities(device);
+        long context = ALC10.alcCreateContext(device, (IntBuffer) null);
+        if (context == 0 || !ALC10.alcMakeContextCurrent(context)) {
+            ALC10.alcCloseDevice(device);
+            throw new IOException("could not create an OpenAL context");
+        }
+        // the context is current for the whole process, so the mixer thread can use it
+        AL.createCapabilities(deviceCaps);
+        return new OpenAlSink(device, context);
+    }
+
+    @Override
+    public ByteOrder order() {
+        return ByteOrder.nativeOrder();
+    }
+
+    @Override
+    public void write(ByteBuffer block) {
+        int buffer;
+        if (filled < BUFFERS) {
+            buffer = buffers[filled++];
+        } else {
+            while (AL10.alGetSourcei(source, AL10.AL_BUFFERS_PROCESSED) == 0) {
+                LockSupport.parkNanos(1_000_000);
+            }
+            buffer = AL10.alSourceUnqueueBuffers(source);
+        }
+        AL10.alBufferData(buffer, AL10.AL_FORMAT_STEREO16, block, AudioEngine.SAMPLE_RATE);
+        AL10.alSourceQueueBuffers(source, buffer);
+        // starts playing, or starts again after running dry
+        if (AL10.alGetSourcei(source, AL10.AL_SOURCE_STATE) != AL10.AL_PLAYING) {
+            AL10.alSourcePlay(source);
+        }
+    }
+
+    @Override
+    public void close() {
+        AL10.alSourceStop(source);
+        AL10.alDeleteSources(source);
+        AL10.alDeleteBuffers(buffers);
+        ALC10.alcMakeContextCurrent(0);
+        ALC10.alcDestroyContext(context);
+        ALC10.alcCloseDevice(device);
+    }
+}
+
+
+//WavSink Class
+// Writes the mix to a 16-bit PCM WAV file; the sizes in the header are filled in on close.
+class WavSink implements AudioSink {
+    static final int RIFF = 0x46464952;
+    static final int WAVE = 0x45564157;
+    static final int FMT = 0x20746D66;
+    static final int DATA = 0x61746164;
+    private static final int HEADER_BYTES = 44;
+
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int channels;
+    private long dataBytes;
+
+    public WavSink(Path file, int sampleRate, int channels) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        writeHeader();
+    }
+
+    @Override
+    public ByteOrder order() {
+        return ByteOrder.LITTLE_ENDIAN;
+    }
+
+    @Override
+    public void write(ByteBuffer block) throws IOException {
+        while (block.hasRemaining()) {
+            dataBytes += channel.write(block, HEADER_BYTES + dataBytes);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            writeHeader();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(RIFF).putInt((int) (36 + dataBytes)).putInt(WAVE);
+        header.putInt(FMT).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        header.putInt(DATA).putInt((int) dataBytes);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+}
+
+
+//GameConfig Class
+// Immutable, pre-parsed snapshot of app.properties so the frame loop never parses strings.
+class GameConfig {
+    private final int windowWidth;
+    private final int windowHeight;
+    private final int maxFrames;
+    private final int tickRate;
+    private final int maxCatchUpTicks;
+    private final double broadphaseCellSize;
+    private final int parallelThreshold;
+    private final int parallelChunkSize;
+    private final int parallelThreads;
+    private final int rewindSeconds;
+    private final int rewindBufferBytes;
+    private final String levelFile;
+    private final int levelChunkSize;
+    private final int throwInterval;
+    private final int firstThrowDelay;
+    private final double throwSpeed;
+    private final int barrelPoolSize;
+    private final int barrelDestroyedPoints;
+    private final int barrelJumpedPoints;
+    private final int bonusPointsPerSecond;
+    private final boolean audioEnabled;
+    private final double audioVolume;
+    private final String musicFile;
+    private final double musicVolume;
+
+    private final String fontFile;
+    private final String backgroundImage;
+    private final int homeTitleFontSize;
+    private final int homeTitleY;
+    private final int homePromptFontSize;
+    private final int homePromptY;
+    private final int gameEndStatusFontSize;
+    private final int gameEndStatusY;
+    private final int gameEndScoresFontSize;
+    private final int gameEndScoresY;
+    private final String scoresFile;
+    private final int leaderboardSize;
+    private final int scoreFontSize;
+    private final int scoreX;
+    private final int scoreY;
+
+    private final double marioStartX;
+    private final double marioStartY;
+    private final double donkeyX;
+    private final double donkeyY;
+    private final double hammerX;
+    private final double hammerY;
+
+    private final double[] barrelX;
+    private final double[] barrelY;
+    private final double[] barrelStartY;
+    private final boolean[] barrelFalling;
+    private final double[] ladderX;
+    private final double[] ladderY;
+    private final double[] platformX;
+    private final double[] platformY;
+
+    private GameConfig(Properties props) {
+        windowWidth = GameUtils.getIntProperty(props, "window.width", 1024);
+        windowHeight = GameUtils.getIntProperty(props, "window.height", 768);
+        maxFrames = GameUtils.getIntProperty(props, "gamePlay.maxFrames", 10000);
+        tickRate = GameUtils.getIntProperty(props, "gamePlay.tickRate", 60);
+        maxCatchUpTicks = GameUtils.getIntProperty(props, "gamePlay.maxCatchUpTicks", 5);
+        broadphaseCellSize = GameUtils.getDoubleProperty(props, "gamePlay.broadphase.cellSize", 64);
+        parallelThreshold = GameUtils.getIntProperty(props, "gamePlay.parallel.threshold", 8192);
+        parallelChunkSize = GameUtils.getIntProperty(props, "gamePlay.parallel.chunkSize", 2048);
+        parallelThreads = GameUtils.getIntProperty(props, "gamePlay.parallel.threads", 0);
+        rewindSeconds = GameUtils.getIntProperty(props, "gamePlay.rewind.seconds", 180);
+        rewindBufferBytes = GameUtils.getIntProperty(props, "gamePlay.rewind.bufferBytes", 4 * 1024 * 1024);
+        String level = props.getProperty("level.file", "").trim();
+        levelFile = level.isEmpty() ? null : level;
+        levelChunkSize = GameUtils.getIntProperty(props, "level.chunkSize", 512);
+        throwInterval = GameUtils.getIntProperty(props, "donkey.throw.interval", 0);
+        firstThrowDelay = GameUtils.getIntProperty(props, "donkey.throw.firstDelay", throwInterval);
+        throwSpeed = GameUtils.getDoubleProperty(props, "donkey.throw.speed", 2);
+        barrelPoolSize = GameUtils.getIntProperty(props, "barrel.pool.size", 32);
+        barrelDestroyedPoints = GameUtils.getIntProperty(props, "score.barrelDestroyed", 100);
+        barrelJumpedPoints = GameUtils.getIntProperty(props, "score.barrelJumped", 30);
+        bonusPointsPerSecond = GameUtils.getIntProperty(props, "score.bonusPerSecond", 3);
+        audioEnabled = Boolean.parseBoolean(props.getProperty("audio.enabled", "true").trim());
+        audioVolume = GameUtils.getDoubleProperty(props, "audio.volume", 0.5);
+        String music = props.getProperty("audio.music", "").trim();
+        musicFile = music.isEmpty() ? null : music;
+        musicVolume = GameUtils.getDoubleProperty(props, "audio.music.volume", 0.3);
+
+        fontFile = props.getProperty("font");
+        backgroundImage = props.getProperty("backgroundImage");
+        homeTitleFontSize = GameUtils.getIntProperty(props, "home.title.fontSize", 64);
+        homeTitleY = GameUtils.getIntProperty(props, "home.title.y", 384);
+        homePromptFontSize = GameUtils.getIntProperty(props, "home.prompt.fontSize", 24);
+        homePromptY = GameUtils.getIntProperty(props, "home.prompt.y", 550);
+        gameEndStatusFontSize = GameUtils.getIntProperty(props, "gameEnd.status.fontSize", 24);
+        gameEndStatusY = GameUtils.getIntProperty(props, "gameEnd.status.y", 500);
+        gameEndScoresFontSize = GameUtils.getIntProperty(props, "gameEnd.scores.fontSize", 20);
+        gameEndScoresY = GameUtils.getIntProperty(props, "gameEnd.scores.y", 360);
+        scoresFile = props.getProperty("gameEnd.scoresFile", "res/scores.csv");
+        leaderboardSize = GameUtils.getIntProperty(props, "gameEnd.leaderboard.size", 5);
+        scoreFontSize = GameUtils.getIntProperty(props, "gamePlay.score.fontSize", 20);
+        scoreX = GameUtils.getIntProperty(props, "gamePlay.score.x", 50);
+        scoreY = GameUtils.getIntProperty(props, "gamePlay.score.y", 50);
+
+        marioStartX = GameUtils.getDoubleProperty(props, "mario.start.x", 100);
+        marioStartY = GameUtils.getDoubleProperty(props, "mario.start.y", 700);
+        donkeyX = GameUtils.getDoubleProperty(props, "donkey.x", 100);
+        donkeyY = GameUtils.getDoubleProperty(props, "donkey.y", 150);
+        hammerX = GameUtils.getDoubleProperty(props, "hammer.x", 650);
+        hammerY = GameUtils.getDoubleProperty(props, "hammer.y", 450);
+
+        List<double[]> barrels = new ArrayList<>();
+        int barrelCount = GameUtils.getIntProperty(props, "barrel.count", 0);
+        for (int i = 1; i <= barrelCount; i++) {
+            // x,y for a resting barrel, or x,y,startY for one that falls from startY down to y
+            double[] coords = parseValues(props.getProperty("barrel." + i), 2, 3);
+            if (coords != null) {
+                boolean shouldFall = coords.length == 3;
+                double startY = shouldFall ? coords[2] : coords[1];
+                barrels.add(new double[]{coords[0], coords[1], startY, shouldFall ? 1 : 0});
+            }
+        }
+        barrelX = new double[barrels.size()];
+        barrelY = new double[barrels.size()];
+        barrelStartY = new double[barrels.size()];
+        barrelFalling = new boolean[barrels.size()];
+        for (int i = 0; i < barrels.size(); i++) {
+            barrelX[i] = barrels.get(i)[0];
+            barrelY[i] = barrels.get(i)[1];
+            barrelStartY[i] = barrels.get(i)[2];
+            barrelFalling[i] = barrels.get(i)[3] != 0;
+        }
+
+        List<double[]> ladders = new ArrayList<>();
+        int ladderCount = GameUtils.getIntProperty(props, "ladder.count", 0);
+        for (int i = 1; i <= ladderCount; i++) {
+            double[] coords = parseCoords(props.getProperty("ladder." + i));
+            if (coords != null) {
+                ladders.add(coords);
+            }
+        }
+        ladderX = column(ladders, 0);
+        ladderY = column(ladders, 1);
+
+        List<double[]> platforms = new ArrayList<>();
+        if (props.containsKey("platforms")) {
+            for (String part : props.getProperty("platforms").split(";")) {
+                double[] coords = parseCoords(part);
+                if (coords != null) {
+                    platforms.add(coords);
+                }
+            }
+        }
+        platformX = column(platforms, 0);
+        platformY = column(platforms, 1);
+    }
+
+    public static GameConfig from(Properties props) {
+        return new GameConfig(props);
+    }
+
+    private static double[] parseCoords(String value) {
+        return parseValues(value, 2, 2);
+    }
+
+    private static double[] parseValues(String value, int min, int max) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length < min || parts.length > max) {
+            return null;
+        }
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        return values;
+    }
+
+    private static double[] column(List<double[]> rows, int index) {
+        double[] values = new double[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i)[index];
+        }
+        return values;
+    }
+
+    public int getWindowWidth() {
+        return windowWidth;
+    }
+
+    public int getWindowHeight() {
+        return windowHeight;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    public int getMaxCatchUpTicks() {
+        return maxCatchUpTicks;
+    }
+
+    // A compiled chunked level to stream instead of the barrels, ladders and platforms listed here.
+    public String getLevelFile() {
+        return levelFile;
+    }
+
+    public int getLevelChunkSize() {
+        return levelChunkSize;
+    }
+
+    // Ticks between barrels thrown by Donkey Kong once he has landed; 0 turns throwing off.
+    public int getThrowInterval() {
+        return throwInterval;
+    }
+
+    public int getFirstThrowDelay() {
+        return firstThrowDelay;
+    }
+
+    public double getThrowSpeed() {
+        return throwSpeed;
+    }
+
+    // The most thrown barrels in play at once; the store keeps room for them up front.
+    public int getBarrelPoolSize() {
+        return barrelPoolSize;
+    }
+
+    public int getBarrelDestroyedPoints() {
+        return barrelDestroyedPoints;
+    }
+
+    public int getBarrelJumpedPoints() {
+        return barrelJumpedPoints;
+    }
+
+    // Points for each second left on the clock when Donkey Kong is beaten.
+    public int getBonusPointsPerSecond() {
+        return bonusPointsPerSecond;
+    }
+
+    public boolean isAudioEnabled() {
+        return audioEnabled;
+    }
+
+    public double getAudioVolume() {
+        return audioVolume;
+    }
+
+    // A 16-bit PCM WAV file looped behind the game, or null for none.
+    public String getMusicFile() {
+        return musicFile;
+    }
+
+    public double getMusicVolume() {
+        return musicVolume;
+    }
+
+    public int getRewindSeconds() {
+        return rewindSeconds;
+    }
+
+    public int getRewindBufferBytes() {
+        return rewindBufferBytes;
+    }
+
+    public double getBroadphaseCellSize() {
+        return broadphaseCellSize;
+    }
+
+    // Entity count from which barrel physics and collision checks are split across threads; 0 never splits.
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public int getParallelChunkSize() {
+        return parallelChunkSize;
+    }
+
+    // Threads for the split work; 0 uses the common pool.
+    public int getParallelThreads() {
+        return parallelThreads;
+    }
+
+    public String getFontFile() {
+        return fontFile;
+    }
+
+    public String getBackgroundImage() {
+        return backgroundImage;
+    }
+
+    public int getHomeTitleFontSize() {
+        return homeTitleFontSize;
+    }
+
+    public int getHomeTitleY() {
+        return homeTitleY;
+    }
+
+    public int getHomePromptFontSize() {
+        return homePromptFontSize;
+    }
+
+    public int getHomePromptY() {
+        return homePromptY;
+    }
+
+    public int getGameEndStatusFontSize() {
+        return gameEndStatusFontSize;
+    }
+
+    public int getGameEndStatusY() {
+        return gameEndStatusY;
+    }
+
+    public int getGameEndScoresFontSize() {
+        return gameEndScoresFontSize;
+    }
+
+    public int getGameEndScoresY() {
+        return gameEndScoresY;
+    }
+
+    public String getScoresFile() {
+        return scoresFile;
+    }
+
+    public int getLeaderboardSize() {
+        return leaderboardSize;
+    }
+
+    public int getScoreFontSize() {
+        return scoreFontSize;
+    }
+
+    public int getScoreX() {
+        return scoreX;
+    }
+
+    public int getScoreY() {
+        return scoreY;
+    }
+
+    public double getMarioStartX() {
+        return marioStartX;
+    }
+
+    public double getMarioStartY() {
+        return marioStartY;
+    }
+
+    public double getDonkeyX() {
+        return donkeyX;
+    }
+
+    public double getDonkeyY() {
+        return donkeyY;
+    }
+
+    public double getHammerX() {
+        return hammerX;
+    }
+
+    public double getHammerY() {
+        return hammerY;
+    }
+
+    public int getBarrelCount() {
+        return barrelX.length;
+    }
+
+    public double[] getBarrelX() {
+        return barrelX.clone();
+    }
+
+    public double[] getBarrelY() {
+        return barrelY.clone();
+    }
+
+    public double[] getBarrelStartY() {
+        return barrelStartY.clone();
+    }
+
+    public boolean[] getBarrelFalling() {
+        return barrelFalling.clone();
+    }
+
+    public double[] getLadderX() {
+        return ladderX.clone();
+    }
+
+    public double[] getLadderY() {
+        return ladderY.clone();
+    }
+
+    public double[] getPlatformX() {
+        return platformX.clone();
+    }
+
+    public double[] getPlatformY() {
+        return platformY.clone();
+    }
+}
+
+
+//ConfigWatcher Class
+// Watches app.properties and swaps in a freshly parsed GameConfig whenever the file changes.
+// A file that fails to parse is reported and the previous config stays in use.
+class ConfigWatcher {
+    private final Path file;
+    private volatile GameConfig current;
+
+    public ConfigWatcher(String configFile, GameConfig initial) {
+        this.file = Paths.get(configFile).toAbsolutePath();
+        this.current = initial;
+    }
+
+    public GameConfig get() {
+        return current;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload() {
+        try {
+            current = GameConfig.from(IOUtils.loadPropertiesFile(file.toString()));
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Keeping previous config, could not reload " + file + ": " + ex);
+        }
+    }
+}
+
+
+//Ladder Class
+class Ladder implements Entity {
+    private static final String IMAGE_FILE = "res/ladder.png";
+    private final Point position;
+    private final double width;
+    private final double height;
+    private final int order;
+
+    public Ladder(Point position) {
+        this(position, 0);
+    }
+
+    // order is the ladder's position in the level definition
+    public Ladder(Point position, int order) {
+        double[] size = IOUtils.readImageSize(IMAGE_FILE);
+        this.position = position;
+        this.width = size[0];
+        this.height = size[1];
+        this.order = order;
+    }
+
+    @Override
+    public void render(SpriteBatch batch, double alpha) {
+        batch.draw(IMAGE_FILE, position.x, position.y);
+    }
+
+    public String getImageFile() {
+        return IMAGE_FILE;
+    }
+
+    public Point getPosition() {
+        return position;
+    }
+
+    public double getX() {
+        return position.x;
+    }
+
+    public double getY() {
+        return position.y;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+}
+
+
+//Platform Class
+class Platform implements Entity {
+    private static final String IMAGE_FILE = "res/platform.png";
+    private final Point position;
+    private final double width;
+    private final double height;
+    private final int order;
+
+    public Platform(Point position) {
+        this(position, 0);
+    }
+
+    // order is the platform's position in the level definition
+    public Platform(Point position, int order) {
+        double[] size = IOUtils.readImageSize(IMAGE_FILE);
+        this.position = position;
+        this.width = size[0];
+        this.height = size[1];
+        this.order = order;
+    }
+
+    @Override
+    public void render(SpriteBatch batch, double alpha) {
+        batch.draw(IMAGE_FILE, position.x, position.y);
+    }
+
+    public String getImageFile() {
+        return IMAGE_FILE;
+    }
+
+    public Point getPosition() {
+        return position;
+    }
+
+    public double getX() {
+        return position.x;
+    }
+
+    public double getY() {
+        return position.y;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+}
+
+
+//Score Manager Class
+// Keeps a running score that's updated as each scoring event comes in. Which barrels have been
+// jumped is kept in a bitset indexed by the barrel's id; the world reuses the id of a barrel that
+// has gone, after calling forget.
+class ScoreManager {
+    private int destroyedPoints = 100;
+    private int jumpedPoints = 30;
+    private int bonusPerSecond = 3;
+
+    private int barrelDestroyed;
+    private int barrelJumped;
+    private int bonusTime;
+    private int score;
+    private long[] jumped = new long[1];
+
+    // A smashed barrel leaves the level, so it can't be counted twice.
+    public void addBarrelDestroyed() {
+        barrelDestroyed++;
+        score += destroyedPoints;
+    }
+
+    public void checkAndAddBarrelJumped(Mario mario, Barrel barrel) {
+        if (!isJumped(barrel.getId()) && isJumpedOver(mario, barrel)) {
+            addBarrelJumped(barrel.getId());
+        }
+    }
+
+    // Whether Mario is above the barrel and close enough to count as jumping it. Only reads, so
+    // it's safe to call from several threads at once.
+    public static boolean isJumpedOver(Mario mario, Barrel barrel) {
+        return mario.getY() + 32 < barrel.getY() &&
+                Math.abs(mario.getX() - barrel.getX()) < 40;
+    }
+
+    // Counts the barrel the first time it's jumped.
+    public void addBarrelJumped(int id) {
+        if (!isJumped(id)) {
+            jumped = set(jumped, id);
+            barrelJumped++;
+            score += jumpedPoints;
+        }
+    }
+
+    public boolean isJumped(int id) {
+        return isSet(jumped, id);
+    }
+
+    // Counts the barrel as jumped without scoring it, for a barrel that was jumped before it was
+    // taken out of the level and has now come back under a new id.
+    public void markJumped(int id) {
+        jumped = set(jumped, id);
+    }
+
+    // The barrel has left the level; the points it scored stay counted.
+    public void forget(int id) {
+        clear(jumped, id);
+    }
+
+    public void calculateBonus(int remainingTimeSeconds) {
+        score -= bonusTime;
+        bonusTime = remainingTimeSeconds * bonusPerSecond;
+        score += bonusTime;
+    }
+
+    public int getFinalScore() {
+        return score;
+    }
+
+    public int getBarrelDestroyed() {
+        return barrelDestroyed;
+    }
+
+    public int getBarrelJumped() {
+        return barrelJumped;
+    }
+
+    public int getBonusTime() {
+        return bonusTime;
+    }
+
+    public void reset(GameConfig config) {
+        destroyedPoints = config.getBarrelDestroyedPoints();
+        jumpedPoints = config.getBarrelJumpedPoints();
+        bonusPerSecond = config.getBonusPointsPerSecond();
+        reset();
+    }
+
+    public void reset() {
+        barrelDestroyed = 0;
+        barrelJumped = 0;
+        bonusTime = 0;
+        score = 0;
+        Arrays.fill(jumped, 0);
+    }
+
+    // The point values come from the config and aren't written.
+    public void writeState(ByteBuffer out) {
+        out.putInt(barrelDestroyed);
+        out.putInt(barrelJumped);
+        out.putInt(bonusTime);
+        out.putInt(score);
+        writeBits(out, jumped);
+    }
+
+    public void readState(ByteBuffer in) {
+        barrelDestroyed = in.getInt();
+        barrelJumped = in.getInt();
+        bonusTime = in.getInt();
+        score = in.getInt();
+        jumped = readBits(in, jumped);
+    }
+
+    private static boolean isSet(long[] bits, int id) {
+        int word = id >>> 6;
+        return word < bits.length && (bits[word] & 1L << id) != 0;
+    }
+
+    // Grows the bitset to hold id if it has to; ids are reused, so it stays small.
+    private static long[] set(long[] bits, int id) {
+        int word = id >>> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+        }
+        bits[word] |= 1L << id;
+        return bits;
+    }
+
+    private static void clear(long[] bits, int id) {
+        int word = id >>> 6;
+        if (word < bits.length) {
+            bits[word] &= ~(1L << id);
+        }
+    }
+
+    private static void writeBits(ByteBuffer out, long[] bits) {
+        out.putInt(bits.length);
+        for (long word : bits) {
+            out.putLong(word);
+        }
+    }
+
+    // Reads into bits when it's big enough, so rewinding doesn't allocate.
+    private static long[] readBits(ByteBuffer in, long[] bits) {
+        int words = in.getInt();
+        if (words > bits.length) {
+            bits = new long[words];
+        }
+        for (int i = 0; i < words; i++) {
+            bits[i] = in.getLong();
+        }
+        Arrays.fill(bits, words, bits.length, 0);
+        return bits;
+    }
+}
+
+
+//ScoreStore Class
+// Durable high scores. The CSV log (epochMillis,score,won,frames per line) is the source of truth
+// and is only ever appended to. Sidecar run files (<log>.idx.<offset>) each hold the scores of one
+// stretch of the log sorted highest first; they are mapped read-only and binary searched, and
+// queries combine them. Scores logged since the last run was written sit in a small sorted
+// in-memory tail. Writing the tail out also merges in the newest runs no bigger than it, so there
+// are O(log n) runs and each score is rewritten O(log n) times. Scores are never negative.
+class ScoreStore implements Closeable {
+    private static final int INDEX_MAGIC = 0x444B5352; // "DKSR"
+    private static final int HEADER_BYTES = 24;
+    private static final int ENTRY_BYTES = 12;
+    private static final int MERGE_THRESHOLD = 1 << 14;
+
+    private final Path logFile;
+    private final FileChannel log;
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final int syncEvery;
+    private int unsynced;
+    private long logSize;
+
+    // in log order, each starting where the one before it ends
+    private final List<Run> runs = new ArrayList<>();
+    private long indexedBytes;
+    private int indexedCount;
+
+    private int[] tailScores = new int[256];
+    private long[] tailOffsets = new long[256];
+    private int tailCount;
+
+    private ScoreStore(Path logFile, int syncEvery) throws IOException {
+        this.logFile = logFile;
+        this.syncEvery = Math.max(1, syncEvery);
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadRuns();
+        recover(indexedBytes);
+    }
+
+    // Scores are fsynced every syncEvery appends, and always on close.
+    public static ScoreStore open(Path logFile, int syncEvery) throws IOException {
+        ScoreStore store = new ScoreStore(logFile, syncEvery);
+        if (store.tailCount >= MERGE_THRESHOLD) {
+            store.merge();
+        }
+        return store;
+    }
+
+    public void append(int score, boolean won, int frames) throws IOException {
+        if (score < 0) {
+            throw new IllegalArgumentException("Negative score: " + score);
+        }
+        byte[] line = (System.currentTimeMillis() + "," + score + "," + (won ? 1 : 0) + "," + frames + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        if (logBuffer.remaining() < line.length) {
+            drainLog();
+        }
+        logBuffer.put(line);
+        addTail(score, logSize);
+        logSize += line.length;
+
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+        if (tailCount >= MERGE_THRESHOLD) {
+            merge();
+        }
+    }
+
+    public void sync() throws IOException {
+        drainLog();
+        log.force(false);
+        unsynced = 0;
+    }
+
+    // 1 + the number of stored scores strictly higher than score.
+    public int rank(int score) {
+        int above = tailAbove(score);
+        for (int r = 0; r < runs.size(); r++) {
+            above += runs.get(r).above(score);
+        }
+        return 1 + above;
+    }
+
+    // The n highest scores, highest first.
+    public int[] top(int n) {
+        int[] out = new int[Math.min(n, size())];
+        int[] next = new int[runs.size()];
+        int j = 0;
+        for (int k = 0; k < out.length; k++) {
+            int best = -1;
+            int bestScore = j < tailCount ? tailScores[j] : -1;
+            for (int r = 0; r < next.length; r++) {
+                Run run = runs.get(r);
+                if (next[r] < run.count && run.scoreAt(next[r]) > bestScore) {
+                    best = r;
+                    bestScore = run.scoreAt(next[r]);
+                }
+            }
+            if (best < 0) {
+                j++;
+            } else {
+                next[best]++;
+            }
+            out[k] = bestScore;
+        }
+        return out;
+    }
+
+    public int size() {
+        return indexedCount + tailCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tailCount > 0) {
+            merge();
+        } else {
+            sync();
+        }
+        log.close();
+    }
+
+    private int tailAbove(int score) {
+        int lo = 0;
+        int hi = tailCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tailScores[mid] > score) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void addTail(int score, long offset) {
+        if (tailCount == tailScores.length) {
+            tailScores = Arrays.copyOf(tailScores, tailCount * 2);
+            tailOffsets = Arrays.copyOf(tailOffsets, tailCount * 2);
+        }
+        // after any equal scores, so ties stay in log order
+        int at = tailAbove(score);
+        while (at < tailCount && tailScores[at] == score) {
+            at++;
+        }
+        System.arraycopy(tailScores, at, tailScores, at + 1, tailCount - at);
+        System.arraycopy(tailOffsets, at, tailOffsets, at + 1, tailCount - at);
+        tailScores[at] = score;
+        tailOffsets[at] = offset;
+        tailCount++;
+    }
+
+    // Sorts a tail read in log order, highest score first and ties in log order.
+    private void sortTail() {
+        long[] keys = new long[tailCount];
+        for (int i = 0; i < tailCount; i++) {
+            keys[i] = (long) (Integer.MAX_VALUE - tailScores[i]) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] scores = new int[tailScores.length];
+        long[] offsets = new long[tailOffsets.length];
+        for (int i = 0; i < tailCount; i++) {
+            int from = (int) keys[i];
+            scores[i] = tailScores[from];
+            offsets[i] = tailOffsets[from];
+        }
+        tailScores = scores;
+        tailOffsets = offsets;
+    }
+
+    private Path runFile(long from) {
+        return logFile.resolveSibling(logFile.getFileName() + ".idx." + from);
+    }
+
+    // Maps the runs that chain on from the start of the log. Anything else is deleted: runs left
+    // behind by a merge cut short, and runs past a gap or a damaged run. The log lines they
+    // covered are read back into the tail.
+    private void loadRuns() throws IOException {
+        String prefix = logFile.getFileName() + ".idx.";
+        TreeMap<Long, Path> files = new TreeMap<>();
+        Path directory = logFile.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                file -> file.getFileName().toString().startsWith(prefix))) {
+            for (Path file : stream) {
+                String from = file.getFileName().toString().substring(prefix.length());
+                if (!from.isEmpty() && from.chars().allMatch(Character::isDigit)) {
+                    files.put(Long.parseLong(from), file);
+                }
+            }
+        }
+        long size = log.size();
+        for (Map.Entry<Long, Path> entry : files.entrySet()) {
+            Run run = entry.getKey() == indexedBytes ? mapRun(entry.getValue(), indexedBytes, size) : null;
+            if (run == null) {
+                Files.deleteIfExists(entry.getValue());
+            } else {
+                runs.add(run);
+                indexedBytes = run.to;
+                indexedCount += run.count;
+            }
+        }
+    }
+
+    // Maps a run if it is intact, covers log bytes from `from` on and doesn't reach past the log.
+    private static Run mapRun(Path file, long from, long logSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (size < HEADER_BYTES || channel.read(header, 0) < HEADER_BYTES) {
+                return null;
+            }
+            int count = header.getInt(4);
+            long to = header.getLong(16);
+            if (header.getInt(0) != INDEX_MAGIC || count < 0 || size != HEADER_BYTES + (long) count * ENTRY_BYTES
+                    || header.getLong(8) != from || to < from || to > logSize) {
+                return null;
+            }
+            return new Run(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), count, from, to);
+        }
+    }
+
+    // Reads log lines past the runs into the tail. A last line without a newline was cut short
+    // by a crash and is truncated so later appends start on a clean line. Lines whose score isn't
+    // a plain number are skipped; append never writes a negative one.
+    private void recover(long from) throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(log.position(from)), 64 * 1024);
+        long offset = from;
+        long lineStart = from;
+        int field = 0;
+        int score = 0;
+        boolean valid = true;
+        int b;
+        while ((b = in.read()) != -1) {
+            offset++;
+            if (b == '\n') {
+                if (field == 3 && valid) {
+                    if (tailCount == tailScores.length) {
+                        tailScores = Arrays.copyOf(tailScores, tailCount * 2);
+                        tailOffsets = Arrays.copyOf(tailOffsets, tailCount * 2);
+                    }
+                    tailScores[tailCount] = score;
+                    tailOffsets[tailCount] = lineStart;
+                    tailCount++;
+                }
+                lineStart = offset;
+                field = 0;
+                score = 0;
+                valid = true;
+            } else if (b == ',') {
+                field++;
+            } else if (field == 1) {
+                if (b >= '0' && b <= '9') {
+                    score = score * 10 + (b - '0');
+                } else {
+                    valid = false;
+                }
+            }
+        }
+        sortTail();
+        logSize = lineStart;
+        if (log.size() > logSize) {
+            log.truncate(logSize);
+        }
+        log.position(logSize);
+    }
+
+    // Writes the tail and the newest runs no bigger than what is being written as one run, named
+    // for where its stretch of the log starts. That is the oldest merged run's name, so the new
+    // file replaces it atomically; a crash leaves either the old runs or the new one plus runs
+    // that loadRuns drops. Ties keep log order: older runs first, then the tail.
+    private void merge() throws IOException {
+        sync();
+        int first = runs.size();
+        int count = tailCount;
+        while (first > 0 && runs.get(first - 1).count <= count) {
+            first--;
+            count += runs.get(first).count;
+        }
+        long from = first < runs.size() ? runs.get(first).from : indexedBytes;
+        Path file = runFile(from);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            buffer.putInt(INDEX_MAGIC);
+            buffer.putInt(count);
+            buffer.putLong(from);
+            buffer.putLong(logSize);
+            int[] next = new int[runs.size()];
+            int j = 0;
+            for (int k = 0; k < count; k++) {
+                if (buffer.remaining() < ENTRY_BYTES) {
+                    drain(out, buffer);
+                }
+                int best = -1;
+                for (int r = first; r < runs.size(); r++) {
+                    Run run = runs.get(r);
+                    if (next[r] < run.count && (best < 0 || run.scoreAt(next[r]) > runs.get(best).scoreAt(next[best]))) {
+                        best = r;
+                    }
+                }
+                if (best < 0 || (j < tailCount && tailScores[j] > runs.get(best).scoreAt(next[best]))) {
+                    buffer.putInt(tailScores[j]);
+                    buffer.putLong(tailOffsets[j]);
+                    j++;
+                } else {
+                    Run run = runs.get(best);
+                    buffer.putInt(run.scoreAt(next[best]));
+                    buffer.putLong(run.offsetAt(next[best]));
+                    next[best]++;
+                }
+            }
+            drain(out, buffer);
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        while (runs.size() > first) {
+            Run merged = runs.remove(runs.size() - 1);
+            indexedCount -= merged.count;
+            if (merged.from != from) {
+                Files.deleteIfExists(runFile(merged.from));
+            }
+        }
+        Run run = mapRun(file, from, logSize);
+        if (run == null) {
+            throw new IOException("Could not read back " + file);
+        }
+        runs.add(run);
+        indexedBytes = run.to;
+        indexedCount += run.count;
+        tailCount = 0;
+    }
+
+    private void drainLog() throws IOException {
+        drain(log, logBuffer);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // One mapped run file: count entries of (score, log offset), highest score first.
+    private static class Run {
+        final MappedByteBuffer entries;
+        final int count;
+        final long from;
+        final long to;
+
+        Run(MappedByteBuffer entries, int count, long from, long to) {
+            this.entries = entries;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+        }
+
+        int scoreAt(int i) {
+            return entries.getInt(HEADER_BYTES + i * ENTRY_BYTES);
+        }
+
+        long offsetAt(int i) {
+            return entries.getLong(HEADER_BYTES + i * ENTRY_BYTES + 4);
+        }
+
+        // How many scores in the run are strictly higher than score.
+        int above(int score) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (scoreAt(mid) > score) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
+
+
+//Barrel Class
+// A view onto one barrel row of an EntityStore.
+class Barrel extends EntityView {
+    private static final String IMAGE_FILE = "res/barrel.png";
+    private static final int SPRITE = EntityStore.sprite(IMAGE_FILE);
+    static final double GRAVITY = 0.5;
+    private static final int COMPONENTS = EntityStore.POSITION | EntityStore.VELOCITY | EntityStore.GRAVITY_BODY
+            | EntityStore.COLLIDER | EntityStore.SPRITE | EntityStore.BARREL;
+
+    Barrel(EntityStore store, int index) {
+        super(store, index);
+    }
+
+    // A barrel resting at (x, stopY), or one falling from startY until it comes to rest at stopY.
+    public static Barrel add(EntityStore store, int id, double x, double stopY, boolean falling, double startY,
+                             int order) {
+        Barrel barrel = create(store, COMPONENTS, id, order);
+        int i = barrel.index;
+        store.x[i] = x;
+        store.y[i] = falling ? startY : stopY;
+        store.previousX[i] = store.x[i];
+        store.previousY[i] = store.y[i];
+        store.restY[i] = stopY;
+        store.flags[i] = falling ? EntityStore.DROPPING : 0;
+        return barrel;
+    }
+
+    public static Barrel addRolling(EntityStore store, int id, double x, double y, double velocityX, int order) {
+        Barrel barrel = create(store, COMPONENTS | EntityStore.ROLLER, id, order);
+        int i = barrel.index;
+        store.x[i] = x;
+        store.y[i] = y;
+        store.previousX[i] = x;
+        store.previousY[i] = y;
+        store.velocityX[i] = velocityX;
+        return barrel;
+    }
+
+    private static Barrel create(EntityStore store, int components, int id, int order) {
+        int i = store.create(components);
+        double[] size = IOUtils.readImageSize(IMAGE_FILE);
+        store.width[i] = size[0];
+        store.height[i] = size[1];
+        store.gravity[i] = GRAVITY;
+        store.sprite[i] = SPRITE;
+        store.id[i] = id;
+        store.order[i] = order;
+        EntityView view = store.getView(i);
+        Barrel barrel = view instanceof Barrel ? (Barrel) view : new Barrel(store, i);
+        store.setView(i, barrel);
+        return barrel;
+    }
+
+    public static double getImageHeight() {
+        return IOUtils.readImageSize(IMAGE_FILE)[1];
+    }
+
+    public Point getPosition() {
+        return new Point(getX(), getY());
+    }
+
+    public boolean isFalling() {
+        return store.is(index, EntityStore.DROPPING);
+    }
+
+    public boolean isRolling() {
+        return store.has(index, EntityStore.ROLLER);
+    }
+
+    public double getVelocityX() {
+        return store.velocityX[index];
+    }
+
+    public double getVelocityY() {
+        return store.velocityY[index];
+    }
+
+    public int getId() {
+        return store.id[index];
+    }
+
+    public int getOrder() {
+        return store.order[index];
+    }
+
+    public int getGridCell() {
+        return store.gridCell[index];
+    }
+
+    public void setGridCell(int gridCell) {
+        store.gridCell[index] = gridCell;
+    }
+
+    public int getGridSlot() {
+        return store.gridSlot[index];
+    }
+
+    public void setGridSlot(int gridSlot) {
+        store.gridSlot[index] = gridSlot;
+    }
+}
+
+//EntityView Class
+// A handle on one row of an EntityStore. Removing a row moves the last row into its place, and
+// the store keeps each view's index pointing at its row.
+abstract class EntityView {
+    protected final EntityStore store;
+    protected int index;
+
+    EntityView(EntityStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    public double getX() {
+        return store.x[index];
+    }
+
+    public double getY() {
+        return store.y[index];
+    }
+
+    public double getWidth() {
+        return store.width[index];
+    }
+
+    public double getHeight() {
+        return store.height[index];
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+}
+
+//EntityStore Class
+// Components for everything that moves. Each component is one or more dense columns indexed by
+// row, and a row's mask says which components it has; the systems walk the columns in row order
+// and skip rows without theirs. Removing a row moves the last one into its place, so only the
+// rows created before the first barrel keep their index; a barrel's spawn order is in its
+// order column.
+class EntityStore {
+    static final int POSITION = 1;
+    static final int VELOCITY = 1 << 1;
+    static final int GRAVITY_BODY = 1 << 2;
+    static final int COLLIDER = 1 << 3;
+    static final int SPRITE = 1 << 4;
+    static final int CLIMBER = 1 << 5;
+    static final int ROLLER = 1 << 6;
+    static final int THROWER = 1 << 7;
+    static final int BARREL = 1 << 8;
+
+    // Bits of the flags column
+    static final int DROPPING = 1;
+    static final int CLIMBING = 1 << 1;
+    static final int ON_PLATFORM = 1 << 2;
+    static final int IN_AIR = 1 << 3;
+    static final int FACING_RIGHT = 1 << 4;
+    static final int HAS_HAMMER = 1 << 5;
+    static final int ESCAPED = 1 << 6;
+    static final int THROW_PENDING = 1 << 7;
+
+    // A row's sprite is an index into this table, so it fits in an int column.
+    private static final String[] SPRITE_FILES = {
+            "res/mario_left.png", "res/mario_right.png", "res/mario_hammer_left.png", "res/mario_hammer_right.png",
+            "res/donkey_kong.png", "res/hammer.png", "res/barrel.png"
+    };
+
+    // The columns are read and written in place by the systems.
+    int[] mask;
+    int[] flags;
+    // position
+    double[] x;
+    double[] y;
+    double[] previousX;
+    double[] previousY;
+    // velocity
+    double[] velocityX;
+    double[] velocityY;
+    // gravity body: falls at gravity up to maxFallSpeed; while DROPPING it stops on reaching restY
+    double[] gravity;
+    double[] maxFallSpeed;
+    double[] restY;
+    // collider
+    double[] width;
+    double[] height;
+    // sprite
+    int[] sprite;
+    double[] spriteOffsetY;
+    // thrower: ticks until the next throw
+    int[] timer;
+    // barrel: a dense id from the world, and the spawn order
+    int[] id;
+    int[] order;
+    // barrel: where the broadphase grid holds it, see BarrelGrid
+    int[] gridCell;
+    int[] gridSlot;
+    boolean[] asleep;
+
+    private EntityView[] views;
+    private int count;
+    private int sleeping;
+    private int rollers;
+
+    public EntityStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mask = new int[capacity];
+        flags = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        previousX = new double[capacity];
+        previousY = new double[capacity];
+        velocityX = new double[capacity];
+        velocityY = new double[capacity];
+        gravity = new double[capacity];
+        maxFallSpeed = new double[capacity];
+        restY = new double[capacity];
+        width = new double[capacity];
+        height = new double[capacity];
+        sprite = new int[capacity];
+        spriteOffsetY = new double[capacity];
+        timer = new int[capacity];
+        id = new int[capacity];
+        order = new int[capacity];
+        gridCell = new int[capacity];
+        gridSlot = new int[capacity];
+        asleep = new boolean[capacity];
+        views = new EntityView[capacity];
+    }
+
+    public static int sprite(String imageFile) {
+        for (int i = 0; i < SPRITE_FILES.length; i++) {
+            if (SPRITE_FILES[i].equals(imageFile)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No sprite for " + imageFile);
+    }
+
+    public static String spriteFile(int sprite) {
+        return SPRITE_FILES[sprite];
+    }
+
+    public static int getSpriteCount() {
+        return SPRITE_FILES.length;
+    }
+
+    // Adds a row with the given components and every column cleared. The row's view is whatever
+    // was parked there by an earlier remove, if anything; see getView.
+    public int create(int components) {
+        if (count == mask.length) {
+            grow(count * 2);
+        }
+        int i = count++;
+        if ((components & ROLLER) != 0) {
+            rollers++;
+        }
+        mask[i] = components;
+        flags[i] = 0;
+        x[i] = 0;
+        y[i] = 0;
+        previousX[i] = 0;
+        previousY[i] = 0;
+        velocityX[i] = 0;
+        velocityY[i] = 0;
+        gravity[i] = 0;
+        maxFallSpeed[i] = Double.POSITIVE_INFINITY;
+        restY[i] = Double.POSITIVE_INFINITY;
+        width[i] = 0;
+        height[i] = 0;
+        sprite[i] = -1;
+        spriteOffsetY[i] = 0;
+        timer[i] = 0;
+        id[i] = 0;
+        order[i] = 0;
+        gridCell[i] = -1;
+        gridSlot[i] = -1;
+        asleep[i] = false;
+        return i;
+    }
+
+    // Creates views for the rows past the end so that later creates can reuse them without allocating.
+    public void fillViews(IntFunction<EntityView> factory) {
+        for (int i = count; i < views.length; i++) {
+            if (views[i] == null) {
+                views[i] = factory.apply(i);
+            }
+        }
+    }
+
+    public EntityView getView(int i) {
+        return views[i];
+    }
+
+    public void setView(int i, EntityView view) {
+        views[i] = view;
+    }
+
+    // Moves the last row into the removed one's place, so removal is O(1). Anything that walks
+    // the rows while removing has to go from the last row down.
+    public void remove(int i) {
+        EntityView view = views[i];
+        if (asleep[i]) {
+            sleeping--;
+        }
+        if ((mask[i] & ROLLER) != 0) {
+            rollers--;
+        }
+        int last = --count;
+        if (i != last) {
+            mask[i] = mask[last];
+            flags[i] = flags[last];
+            x[i] = x[last];
+            y[i] = y[last];
+            previousX[i] = previousX[last];
+            previousY[i] = previousY[last];
+            velocityX[i] = velocityX[last];
+            velocityY[i] = velocityY[last];
+            gravity[i] = gravity[last];
+            maxFallSpeed[i] = maxFallSpeed[last];
+            restY[i] = restY[last];
+            width[i] = width[last];
+            height[i] = height[last];
+            sprite[i] = sprite[last];
+            spriteOffsetY[i] = spriteOffsetY[last];
+            timer[i] = timer[last];
+            id[i] = id[last];
+            order[i] = order[last];
+            gridCell[i] = gridCell[last];
+            gridSlot[i] = gridSlot[last];
+            asleep[i] = asleep[last];
+            views[i] = views[last];
+            views[i].setIndex(i);
+        }
+        // park the removed view past the end so the next create can reuse it
+        views[last] = view;
+        if (view != null) {
+            view.setIndex(last);
+        }
+    }
+
+    // Drops every row from size on; their views stay parked for reuse.
+    public void truncate(int size) {
+        for (int i = size; i < count; i++) {
+            if (asleep[i]) {
+                sleeping--;
+            }
+            if ((mask[i] & ROLLER) != 0) {
+                rollers--;
+            }
+        }
+        count = Math.min(count, size);
+    }
+
+    public void savePrevious() {
+        System.arraycopy(x, 0, previousX, 0, count);
+        System.arraycopy(y, 0, previousY, 0, count);
+    }
+
+    public boolean has(int i, int components) {
+        return (mask[i] & components) == components;
+    }
+
+    public boolean is(int i, int flag) {
+        return (flags[i] & flag) != 0;
+    }
+
+    public void setFlag(int i, int flag, boolean on) {
+        flags[i] = on ? flags[i] | flag : flags[i] & ~flag;
+    }
+
+    // Whether the colliders of rows a and b overlap.
+    public boolean overlaps(int a, int b) {
+        return GameUtils.isColliding(x[a], y[a], width[a], height[a], x[b], y[b], width[b], height[b]);
+    }
+
+    public int getRollerCount() {
+        return rollers;
+    }
+
+    // Resting barrels outside the area sleep; sleeping barrels inside it wake up.
+    public void updateSleep(double minX, double minY, double maxX, double maxY) {
+        for (int i = 0; i < count; i++) {
+            if ((mask[i] & BARREL) == 0) {
+                continue;
+            }
+            boolean near = x[i] + width[i] >= minX && x[i] <= maxX && y[i] + height[i] >= minY && y[i] <= maxY;
+            if (asleep[i]) {
+                if (near) {
+                    asleep[i] = false;
+                    sleeping--;
+                }
+            } else if (!near && (flags[i] & DROPPING) == 0 && (mask[i] & ROLLER) == 0) {
+                asleep[i] = true;
+                sleeping++;
+            }
+        }
+    }
+
+    public int getSleepingCount() {
+        return sleeping;
+    }
+
+    // Grid cells and sleep are left out; the owner re-files the barrels after reading.
+    public void writeState(ByteBuffer out) {
+        out.putInt(count);
+        for (int i = 0; i < count; i++) {
+            out.putInt(mask[i]);
+            out.putInt(flags[i]);
+            out.putDouble(x[i]);
+            out.putDouble(y[i]);
+            out.putDouble(previousX[i]);
+            out.putDouble(previousY[i]);
+            out.putDouble(velocityX[i]);
+            out.putDouble(velocityY[i]);
+            out.putDouble(gravity[i]);
+            out.putDouble(maxFallSpeed[i]);
+            out.putDouble(restY[i]);
+            out.putDouble(width[i]);
+            out.putDouble(height[i]);
+            out.putInt(sprite[i]);
+            out.putDouble(spriteOffsetY[i]);
+            out.putInt(timer[i]);
+            out.putInt(id[i]);
+            out.putInt(order[i]);
+        }
+    }
+
+    // Rows keep the views they had; the rows of a snapshot taken from this store line up with them.
+    public void readState(ByteBuffer in) {
+        int rows = in.getInt();
+        if (rows > mask.length) {
+            grow(rows);
+        }
+        rollers = 0;
+        for (int i = 0; i < rows; i++) {
+            mask[i] = in.getInt();
+            flags[i] = in.getInt();
+            x[i] = in.getDouble();
+            y[i] = in.getDouble();
+            previousX[i] = in.getDouble();
+            previousY[i] = in.getDouble();
+            velocityX[i] = in.getDouble();
+            velocityY[i] = in.getDouble();
+            gravity[i] = in.getDouble();
+            maxFallSpeed[i] = in.getDouble();
+            restY[i] = in.getDouble();
+            width[i] = in.getDouble();
+            height[i] = in.getDouble();
+            sprite[i] = in.getInt();
+            spriteOffsetY[i] = in.getDouble();
+            timer[i] = in.getInt();
+            id[i] = in.getInt();
+            order[i] = in.getInt();
+            gridCell[i] = -1;
+            gridSlot[i] = -1;
+            asleep[i] = false;
+            if ((mask[i] & ROLLER) != 0) {
+                rollers++;
+            }
+        }
+        for (int i = 0; i < views.length; i++) {
+            if (views[i] != null) {
+                views[i].setIndex(i);
+            }
+        }
+        count = rows;
+        sleeping = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private void grow(int capacity) {
+        mask = Arrays.copyOf(mask, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        previousX = Arrays.copyOf(previousX, capacity);
+        previousY = Arrays.copyOf(previousY, capacity);
+        velocityX = Arrays.copyOf(velocityX, capacity);
+        velocityY = Arrays.copyOf(velocityY, capacity);
+        gravity = Arrays.copyOf(gravity, capacity);
+        maxFallSpeed = Arrays.copyOf(maxFallSpeed, capacity);
+        restY = Arrays.copyOf(restY, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        sprite = Arrays.copyOf(sprite, capacity);
+        spriteOffsetY = Arrays.copyOf(spriteOffsetY, capacity);
+        timer = Arrays.copyOf(timer, capacity);
+        id = Arrays.copyOf(id, capacity);
+        order = Arrays.copyOf(order, capacity);
+        gridCell = Arrays.copyOf(gridCell, capacity);
+        gridSlot = Arrays.copyOf(gridSlot, capacity);
+        asleep = Arrays.copyOf(asleep, capacity);
+        views = Arrays.copyOf(views, capacity);
+    }
+}
+
+//ClimberSystem Class
+// Walks, jumps and climbs the rows that take the player's input (Mario). Rows still dropping
+// into place are left to the DropSystem.
+class ClimberSystem {
+    // NavGraph plans with the same numbers
+    static final double SPEED = 3.5;
+    static final double CLIMB_SPEED = 2;
+    static final double JUMP_VELOCITY = -5;
+    static final double MAX_FALL_SPEED = 10;
+    // ladders and platforms are checked against a 32x40 body rather than the collider
+    static final double BODY_WIDTH = 32;
+    static final double BODY_HEIGHT = 40;
+
+    // Returns how many rows started a jump.
+    public int run(EntityStore store, InputSource input, GeometryIndex platforms, GeometryIndex ladders) {
+        int jumps = 0;
+        for (int i = 0, n = store.size(); i < n; i++) {
+            if (store.has(i, EntityStore.CLIMBER) && climb(store, i, input, platforms, ladders)) {
+                jumps++;
+            }
+        }
+        return jumps;
+    }
+
+    private boolean climb(EntityStore store, int i, InputSource input, GeometryIndex platforms, GeometryIndex ladders) {
+        int flags = store.flags[i] & ~EntityStore.CLIMBING;
+        if ((flags & EntityStore.DROPPING) != 0) {
+            store.flags[i] = flags;
+            return false;
+        }
+
+        double x = store.x[i];
+        double y = store.y[i];
+        double nextX = x;
+        double nextY = y;
+        double velocityY = store.velocityY[i];
+        boolean climbing = false;
+
+        if (input.isDown(Keys.LEFT)) {
+            nextX -= SPEED;
+            flags &= ~EntityStore.FACING_RIGHT;
+        } else if (input.isDown(Keys.RIGHT)) {
+            nextX += SPEED;
+            flags |= EntityStore.FACING_RIGHT;
+        }
+
+        // The first ladder in level order that Mario is on, or that he can climb down onto.
+        boolean downHeld = input.isDown(Keys.DOWN);
+        int ladder = ladders.firstColliding(x, y, BODY_WIDTH, BODY_HEIGHT);
+        if (downHeld) {
+            int below = ladders.firstColliding(x, y + 5, BODY_WIDTH, BODY_HEIGHT);
+            if (below >= 0 && (ladder < 0 || below < ladder)) {
+                ladder = below;
+            }
+        }
+
+        if (ladder >= 0) {
+            if (input.isDown(Keys.UP)) {
+                nextY -= CLIMB_SPEED;
+                climbing = true;
+            } else if (downHeld) {
+                double ladderBottom = ladders.getTop(ladder) + ladders.getHeight(ladder);
+                if (y + BODY_HEIGHT < ladderBottom) {
+                    nextY += CLIMB_SPEED;
+                    if (nextY + BODY_HEIGHT > ladderBottom) {
+                        nextY = ladderBottom - BODY_HEIGHT;
+                    }
+                    climbing = true;
+                }
+            }
+        }
+
+        if (!climbing) {
+            velocityY += store.gravity[i];
+            if (velocityY > MAX_FALL_SPEED) {
+                velocityY = MAX_FALL_SPEED;
+            }
+            nextY += velocityY;
+        } else {
+            velocityY = 0;
+        }
+
+        // Mario lands on the highest platform under him that his feet pass this tick.
+        double platformY = platforms.firstTop(x, x + BODY_WIDTH, y + BODY_HEIGHT, nextY + BODY_HEIGHT);
+        boolean onPlatform = !Double.isNaN(platformY);
+        if (onPlatform && !climbing) {
+            nextY = platformY - BODY_HEIGHT;
+            flags &= ~EntityStore.IN_AIR;
+            velocityY = 0;
+        }
+
+        boolean jumped = input.wasPressed(Keys.SPACE) && onPlatform;
+        if (jumped) {
+            velocityY = JUMP_VELOCITY;
+            flags |= EntityStore.IN_AIR;
+        }
+        flags = climbing ? flags | EntityStore.CLIMBING : flags;
+        flags = onPlatform ? flags | EntityStore.ON_PLATFORM : flags & ~EntityStore.ON_PLATFORM;
+
+        store.x[i] = nextX;
+        store.y[i] = nextY;
+        store.velocityY[i] = velocityY;
+        store.flags[i] = flags;
+        Mario.pickSprite(store, i);
+        return jumped;
+    }
+}
+
+//ThrowerSystem Class
+// Counts down to the next throw of every thrower that has landed, and flags the throw when it's due.
+class ThrowerSystem {
+    public void run(EntityStore store, int interval) {
+        if (interval <= 0) {
+            return;
+        }
+        for (int i = 0, n = store.size(); i < n; i++) {
+            if (store.has(i, EntityStore.THROWER) && !store.is(i, EntityStore.DROPPING) && --store.timer[i] <= 0) {
+                store.timer[i] = interval;
+                store.flags[i] |= EntityStore.THROW_PENDING;
+            }
+        }
+    }
+}
+
+//DropSystem Class
+// Lets gravity bodies that are dropping into place (Mario and Donkey Kong at the start, and the
+// level's falling barrels) fall until they reach their rest line.
+class DropSystem {
+    public void run(EntityStore store) {
+        run(store, 0, store.size());
+    }
+
+    // Rows are independent, so disjoint ranges can run on different threads.
+    public void run(EntityStore store, int from, int to) {
+        int[] mask = store.mask;
+        int[] flags = store.flags;
+        double[] y = store.y;
+        double[] velocityY = store.velocityY;
+        boolean[] asleep = store.asleep;
+        for (int i = from; i < to; i++) {
+            if (asleep[i] || (flags[i] & EntityStore.DROPPING) == 0 || (mask[i] & EntityStore.GRAVITY_BODY) == 0) {
+                continue;
+            }
+            double speed = velocityY[i] + store.gravity[i];
+            if (speed > store.maxFallSpeed[i]) {
+                speed = store.maxFallSpeed[i];
+            }
+            double nextY = y[i] + speed;
+            if (nextY >= store.restY[i]) {
+                nextY = store.restY[i];
+                speed = 0;
+                flags[i] &= ~EntityStore.DROPPING;
+            }
+            y[i] = nextY;
+            velocityY[i] = speed;
+        }
+    }
+}
+
+//RollerSystem Class
+// Rolls barrels along platforms: they fall under gravity, land on the highest platform they
+// cross, bounce off the sides of the level and turn around after dropping to a lower floor.
+// On the bottom floor they roll out through the side instead.
+class RollerSystem {
+    // A barrel that lands faster than this has dropped off a platform and turns around.
+    static final double TURN_AROUND_SPEED = 2.0;
+
+    // Returns how many rollers left the level; they're flagged ESCAPED.
+    public int run(EntityStore store, GeometryIndex platforms, double levelWidth, double levelHeight) {
+        return run(store, 0, store.size(), platforms, levelWidth, levelHeight);
+    }
+
+    // Rows are independent, so disjoint ranges can run on different threads.
+    public int run(EntityStore store, int from, int to, GeometryIndex platforms, double levelWidth, double levelHeight) {
+        double bottomFloor = platforms.getLowestTop();
+        int escaped = 0;
+        for (int i = from; i < to; i++) {
+            if (!store.asleep[i] && store.has(i, EntityStore.ROLLER)
+                    && roll(store, i, platforms, bottomFloor, levelWidth, levelHeight)) {
+                store.flags[i] |= EntityStore.ESCAPED;
+                escaped++;
+            }
+        }
+        return escaped;
+    }
+
+    private boolean roll(EntityStore store, int i, GeometryIndex platforms, double bottomFloor,
+                         double levelWidth, double levelHeight) {
+        double width = store.width[i];
+        double height = store.height[i];
+        double velocityX = store.velocityX[i];
+        double velocityY = store.velocityY[i] + store.gravity[i];
+        double nextX = store.x[i] + velocityX;
+        if (nextX < 0 || nextX + width > levelWidth) {
+            if (store.y[i] + height >= bottomFloor) {
+                store.x[i] = nextX;
+                return true;
+            }
+            velocityX = -velocityX;
+            nextX = Math.max(0, Math.min(levelWidth - width, nextX));
+        }
+        double nextY = store.y[i] + velocityY;
+        double landing = platforms.firstTop(nextX, nextX + width, store.y[i] + height, nextY + height);
+        if (!Double.isNaN(landing)) {
+            if (velocityY > TURN_AROUND_SPEED) {
+                velocityX = -velocityX;
+            }
+            nextY = landing - height;
+            velocityY = 0;
+        }
+        store.x[i] = nextX;
+        store.y[i] = nextY;
+        store.velocityX[i] = velocityX;
+        store.velocityY[i] = velocityY;
+        return nextY > levelHeight;
+    }
+}
+
+//SpriteSystem Class
+// Draws every row with a sprite, in row order, where it was alpha of the way through the tick.
+class SpriteSystem {
+    private final double[] spriteWidth = new double[EntityStore.getSpriteCount()];
+    private final double[] spriteHeight = new double[EntityStore.getSpriteCount()];
+
+    public SpriteSystem() {
+        for (int i = 0; i < spriteWidth.length; i++) {
+            double[] size = IOUtils.readImageSize(EntityStore.spriteFile(i));
+            spriteWidth[i] = size[0];
+            spriteHeight[i] = size[1];
+        }
+    }
+
+    public void render(EntityStore store, SpriteBatch batch, double alpha, Camera camera) {
+        for (int i = 0, n = store.size(); i < n; i++) {
+            if (!store.has(i, EntityStore.SPRITE)) {
+                continue;
+            }
+            int sprite = store.sprite[i];
+            double drawX = GameUtils.lerp(store.previousX[i], store.x[i], alpha);
+            double drawY = GameUtils.lerp(store.previousY[i], store.y[i], alpha) + store.spriteOffsetY[i];
+            if (camera.isVisible(drawX, drawY, spriteWidth[sprite], spriteHeight[sprite])) {
+                batch.draw(EntityStore.spriteFile(sprite), drawX, drawY);
+            }
+        }
+    }
+}
+
+
+//GeometryIndex Class
+// Static boxes (platforms or ladders) grouped into rows by their top edge. Each row is sorted by
+// left edge with a running maximum of right edges, so the boxes in a row that overlap an x range
+// come from a binary search. Built when the level changes; queries don't allocate.
+class GeometryIndex {
+    // per box, in the order the boxes were given
+    private final double[] boxTop;
+    private final double[] boxHeight;
+
+    // distinct tops ascending; row r holds sorted entries [rowStart[r], rowStart[r + 1])
+    private final double[] rowTop;
+    private final int[] rowStart;
+    private final double[] left;
+    private final double[] right;
+    private final double[] bottom;
+    private final double[] maxRight;
+    private final int[] index;
+    private final double maxHeight;
+    private final double lowestTop;
+
+    public GeometryIndex(double[] x, double[] y, double[] width, double[] height) {
+        int n = x.length;
+        boxTop = y.clone();
+        boxHeight = height.clone();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> y[a] != y[b] ? Double.compare(y[a], y[b]) : Double.compare(x[a], x[b]));
+
+        left = new double[n];
+        right = new double[n];
+        bottom = new double[n];
+        maxRight = new double[n];
+        index = new int[n];
+        int[] starts = new int[n + 1];
+        double[] tops = new double[n];
+        int rows = 0;
+        double tallest = 0;
+        double lowest = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++) {
+            int i = order[j];
+            if (rows == 0 || y[i] != tops[rows - 1]) {
+                tops[rows] = y[i];
+                starts[rows++] = j;
+            }
+            left[j] = x[i];
+            right[j] = x[i] + width[i];
+            bottom[j] = y[i] + height[i];
+            maxRight[j] = starts[rows - 1] == j ? right[j] : Math.max(maxRight[j - 1], right[j]);
+            index[j] = i;
+            tallest = Math.max(tallest, height[i]);
+            lowest = Math.max(lowest, y[i]);
+        }
+        starts[rows] = n;
+        rowTop = Arrays.copyOf(tops, rows);
+        rowStart = Arrays.copyOf(starts, rows + 1);
+        maxHeight = tallest;
+        lowestTop = lowest;
+    }
+
+    public static GeometryIndex ofPlatforms(List<Platform> platforms) {
+        int n = platforms.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] width = new double[n];
+        double[] height = new double[n];
+        for (int i = 0; i < n; i++) {
+            Platform platform = platforms.get(i);
+            x[i] = platform.getX();
+            y[i] = platform.getY();
+            width[i] = platform.getWidth();
+            height[i] = platform.getHeight();
+        }
+        return new GeometryIndex(x, y, width, height);
+    }
 
-    public Hammer(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "hammer.x", 650);
-        double y = GameUtils.getDoubleProperty(props, "hammer.y", 450);
-        this.position = new Point(x, y);
-        this.image = new Image("res/hammer.png");
+    public static GeometryIndex ofLadders(List<Ladder> ladders) {
+        int n = ladders.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] width = new double[n];
+        double[] height = new double[n];
+        for (int i = 0; i < n; i++) {
+            Ladder ladder = ladders.get(i);
+            x[i] = ladder.getX();
+            y[i] = ladder.getY();
+            width[i] = ladder.getWidth();
+            height[i] = ladder.getHeight();
+        }
+        return new GeometryIndex(x, y, width, height);
     }
 
-    @Override
-    public void update() {
+    // The smallest top in [minTop, maxTop] among boxes whose x range overlaps (fromX, toX), or NaN.
+    public double firstTop(double fromX, double toX, double minTop, double maxTop) {
+        for (int r = firstRowFrom(minTop); r < rowTop.length && rowTop[r] <= maxTop; r++) {
+            int last = lastStartingBefore(r, toX);
+            if (last >= rowStart[r] && maxRight[last] > fromX) {
+                return rowTop[r];
+            }
+        }
+        return Double.NaN;
     }
 
-    @Override
-    public void render() {
-        if (!collected) {
-            image.drawFromTopLeft(position.x, position.y);
+    // The smallest box index that collides with the given box by GameUtils.isColliding, or -1.
+    public int firstColliding(double x, double y, double width, double height) {
+        double toX = x + width;
+        double toY = y + height;
+        int first = -1;
+        // a box can only reach down to y if its top is within maxHeight above it; 1 covers rounding
+        for (int r = firstRowFrom(y - maxHeight - 1); r < rowTop.length && rowTop[r] < toY; r++) {
+            for (int j = lastStartingBefore(r, toX); j >= rowStart[r] && maxRight[j] > x; j--) {
+                if (x < right[j] && y < bottom[j] && (first < 0 || index[j] < first)) {
+                    first = index[j];
+                }
+            }
         }
+        return first;
     }
 
-    public Point getPosition() {
-        return position;
+    public double getTop(int box) {
+        return boxTop[box];
     }
 
-    public boolean isCollected() {
-        return collected;
+    public double getHeight(int box) {
+        return boxHeight[box];
     }
 
-    public void reset(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "hammer.x", 650);
-        double y = GameUtils.getDoubleProperty(props, "hammer.y", 450);
-        position = new Point(x, y);
-        collected = false;
+    // The largest top, i.e. the lowest box on screen; negative infinity with no boxes.
+    public double getLowestTop() {
+        return lowestTop;
     }
 
+    private int firstRowFrom(double top) {
+        int lo = 0;
+        int hi = rowTop.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rowTop[mid] < top) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
 
-    public void collect() {
-        collected = true;
+    // The last entry of row r whose left edge is before x, or rowStart[r] - 1 if there is none.
+    private int lastStartingBefore(int r, double x) {
+        int lo = rowStart[r];
+        int hi = rowStart[r + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (left[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
     }
 }
 
-
-//IOUtils Class
-class IOUtils {
-
-    public static Properties readPropertiesFile(String configFile) {
-        Properties appProps = new Properties();
-        try {
-            appProps.load(new FileInputStream(configFile));
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            System.exit(-1);
+//NavGraph Class
+// Where Mario can get to in a level, built from its platforms and ladders whenever the level
+// changes. Platforms with the same top that touch are merged into spans he can walk along.
+// Waypoints sit where he can leave a span (the ends of ladders, the edges he falls or jumps
+// off) and where he arrives on the next one; the edges between them cost ticks. A plan is an
+// A* search over the waypoints and doesn't allocate.
+class NavGraph {
+    static final int ARRIVE = 0;
+    static final int CLIMB_UP = 1;
+    static final int CLIMB_DOWN = 2;
+    static final int FALL = 3;
+    static final int JUMP = 4;
+    private static final int WALK = 5;
+    // a fall or jump that hasn't landed after this many ticks has left the level
+    private static final int MAX_AIR_TICKS = 600;
+
+    private final GeometryIndex platforms;
+    // spans sorted by top, then left edge; Mario stands on one while left - BODY_WIDTH < x < right
+    private final double[] spanTop;
+    private final double[] spanLeft;
+    private final double[] spanRight;
+    // waypoints sorted by span, then x; span s owns [spanPoints[s], spanPoints[s + 1])
+    private final int[] spanPoints;
+    private final double[] pointX;
+    private final int[] pointSpan;
+    // edges leaving waypoint p are [edgeStart[p], edgeStart[p + 1])
+    private final int[] edgeStart;
+    private final int[] edgeTo;
+    private final int[] edgeAction;
+    private final double[] edgeCost;
+    // how far above where he took off a jump lifts Mario
+    private final double jumpHeight;
+
+    // search state, reused by every plan; cost[p] only counts when seen[p] == search
+    private final double[] cost;
+    private final int[] cameFrom;
+    private final int[] cameBy;
+    private final int[] seen;
+    private final int[] heap;
+    private final double[] heapKey;
+    private int heapSize;
+    private int search;
+
+    private int stepAction;
+    private double stepX;
+    private int stepDirection;
+    private int goalSpan = -1;
+    private double goalX;
+    private boolean goalJump;
+    private double landedX;
+    private double landedTop;
+
+    private NavGraph(List<Platform> platformList, List<Ladder> ladders) {
+        platforms = GeometryIndex.ofPlatforms(platformList);
+
+        List<Platform> sortedPlatforms = new ArrayList<>(platformList);
+        sortedPlatforms.sort((a, b) -> a.getY() != b.getY()
+                ? Double.compare(a.getY(), b.getY()) : Double.compare(a.getX(), b.getX()));
+        int n = sortedPlatforms.size();
+        double[] tops = new double[n];
+        double[] lefts = new double[n];
+        double[] rights = new double[n];
+        int spans = 0;
+        for (Platform platform : sortedPlatforms) {
+            if (spans > 0 && tops[spans - 1] == platform.getY() && platform.getX() <= rights[spans - 1]) {
+                rights[spans - 1] = Math.max(rights[spans - 1], platform.getX() + platform.getWidth());
+            } else {
+                tops[spans] = platform.getY();
+                lefts[spans] = platform.getX();
+                rights[spans] = platform.getX() + platform.getWidth();
+                spans++;
+            }
         }
+        spanTop = Arrays.copyOf(tops, spans);
+        spanLeft = Arrays.copyOf(lefts, spans);
+        spanRight = Arrays.copyOf(rights, spans);
 
-        return appProps;
-    }
+        double rise = 0;
+        for (double velocityY = ClimberSystem.JUMP_VELOCITY + Mario.GRAVITY; velocityY < 0; velocityY += Mario.GRAVITY) {
+            rise -= velocityY;
+        }
+        jumpHeight = rise;
 
-}
+        // waypoints as {span, x}, and the edges between spans as {from, to, action, cost}
+        List<double[]> points = new ArrayList<>();
+        List<double[]> links = new ArrayList<>();
+        for (Ladder ladder : ladders) {
+            addLadder(ladder, points, links);
+        }
+        for (int s = 0; s < spans; s++) {
+            addEdge(s, spanRight[s] - 1, 1, points, links);
+            addEdge(s, spanLeft[s] - ClimberSystem.BODY_WIDTH + 1, -1, points, links);
+        }
 
+        // number the waypoints in span and x order, merging any that are less than a pixel apart
+        Integer[] order = new Integer[points.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> points.get(a)[0] != points.get(b)[0]
+                ? Double.compare(points.get(a)[0], points.get(b)[0])
+                : Double.compare(points.get(a)[1], points.get(b)[1]));
+        int[] renumber = new int[order.length];
+        double[] xs = new double[order.length];
+        int[] owners = new int[order.length];
+        int count = 0;
+        for (int i : order) {
+            double[] point = points.get(i);
+            if (count == 0 || owners[count - 1] != (int) point[0] || point[1] - xs[count - 1] >= 1) {
+                owners[count] = (int) point[0];
+                xs[count] = point[1];
+                count++;
+            }
+            renumber[i] = count - 1;
+        }
+        pointX = Arrays.copyOf(xs, count);
+        pointSpan = Arrays.copyOf(owners, count);
+        spanPoints = new int[spans + 1];
+        for (int s = 0, p = 0; s <= spans; s++) {
+            while (p < count && pointSpan[p] < s) {
+                p++;
+            }
+            spanPoints[s] = p;
+        }
 
-//Ladder Class
-class Ladder implements Entity {
-    private final Image image;
-    private final Point position;
-    private final double width;
-    private final double height;
+        // every waypoint can walk to its neighbours on the same span
+        List<List<double[]>> outgoing = new ArrayList<>();
+        for (int p = 0; p < count; p++) {
+            outgoing.add(new ArrayList<>());
+        }
+        for (int p = 0; p + 1 < count; p++) {
+            if (pointSpan[p] == pointSpan[p + 1]) {
+                double walk = (pointX[p + 1] - pointX[p]) / ClimberSystem.SPEED;
+                outgoing.get(p).add(new double[]{p + 1, WALK, walk});
+                outgoing.get(p + 1).add(new double[]{p, WALK, walk});
+            }
+        }
+        for (double[] link : links) {
+            outgoing.get(renumber[(int) link[0]]).add(new double[]{renumber[(int) link[1]], link[2], link[3]});
+        }
 
-    public Ladder(Point position) {
-        this.image = new Image("res/ladder.png");
-        this.position = position;
-        this.width = image.getWidth();
-        this.height = image.getHeight();
+        int edges = 0;
+        for (List<double[]> list : outgoing) {
+            edges += list.size();
+        }
+        edgeStart = new int[count + 1];
+        edgeTo = new int[edges];
+        edgeAction = new int[edges];
+        edgeCost = new double[edges];
+        for (int p = 0, e = 0; p < count; p++) {
+            edgeStart[p] = e;
+            for (double[] edge : outgoing.get(p)) {
+                edgeTo[e] = (int) edge[0];
+                edgeAction[e] = (int) edge[1];
+                edgeCost[e] = edge[2];
+                e++;
+            }
+        }
+        edgeStart[count] = edges;
+
+        cost = new double[count];
+        cameFrom = new int[count];
+        cameBy = new int[count];
+        seen = new int[count];
+        heap = new int[count + edges];
+        heapKey = new double[count + edges];
     }
 
-    @Override
-    public void update() {
+    public static NavGraph build(List<Platform> platforms, List<Ladder> ladders) {
+        return new NavGraph(platforms, ladders);
     }
 
-    @Override
-    public void render() {
-        image.drawFromTopLeft(position.x, position.y);
+    // A ladder runs from the span nearest its foot up to the first span at or below its top.
+    private void addLadder(Ladder ladder, List<double[]> points, List<double[]> links) {
+        double x = ladder.getX() + (ladder.getWidth() - ClimberSystem.BODY_WIDTH) / 2;
+        double top = ladder.getY();
+        double foot = top + ladder.getHeight();
+        int upper = -1;
+        int lower = -1;
+        for (int s = 0; s < spanTop.length; s++) {
+            if (!supports(s, x)) {
+                continue;
+            }
+            if (upper < 0 && spanTop[s] >= top - 0.5 && spanTop[s] < foot) {
+                upper = s;
+            }
+            if (spanTop[s] > top && (lower < 0 || Math.abs(spanTop[s] - foot) < Math.abs(spanTop[lower] - foot))) {
+                lower = s;
+            }
+        }
+        // Mario can only start up from where his body still reaches the ladder
+        if (upper < 0 || lower < 0 || spanTop[lower] <= spanTop[upper]
+                || spanTop[lower] - ClimberSystem.BODY_HEIGHT >= foot) {
+            return;
+        }
+        int from = addPoint(lower, x, points);
+        int to = addPoint(upper, x, points);
+        links.add(new double[]{from, to, CLIMB_UP, (spanTop[lower] - top) / ClimberSystem.CLIMB_SPEED + 1});
+        links.add(new double[]{to, from, CLIMB_DOWN, (spanTop[lower] - spanTop[upper]) / ClimberSystem.CLIMB_SPEED + 1});
     }
 
-    public Point getPosition() {
-        return position;
+    // Walking off the end of span s that edgeX is at, and jumping from just short of it, where
+    // either lands somewhere else.
+    private void addEdge(int s, double edgeX, int direction, List<double[]> points, List<double[]> links) {
+        double standY = spanTop[s] - ClimberSystem.BODY_HEIGHT;
+        int fallSpan = -1;
+        // he's let go of the keys by the time he's two pixels past the edge
+        int ticks = fly(edgeX + 2 * direction, standY, 0, 0);
+        if (ticks > 0) {
+            fallSpan = spanAt(landedX, landedTop);
+            if (fallSpan >= 0 && fallSpan != s) {
+                links.add(new double[]{addPoint(s, edgeX, points), addPoint(fallSpan, landedX, points), FALL, ticks + 1});
+            }
+        }
+        // a jump takes off from one step back, so that arriving a little late still leaves the span
+        double takeOffX = edgeX - direction * ClimberSystem.SPEED;
+        ticks = fly(takeOffX + direction * ClimberSystem.SPEED, standY, ClimberSystem.JUMP_VELOCITY, direction);
+        if (ticks > 0) {
+            int jumpSpan = spanAt(landedX, landedTop);
+            if (jumpSpan >= 0 && jumpSpan != s && jumpSpan != fallSpan) {
+                links.add(new double[]{addPoint(s, takeOffX, points), addPoint(jumpSpan, landedX, points), JUMP, ticks + 1});
+            }
+        }
     }
 
-    public double getWidth() {
-        return width;
+    private static int addPoint(int span, double x, List<double[]> points) {
+        points.add(new double[]{span, x});
+        return points.size() - 1;
     }
 
-    public double getHeight() {
-        return height;
+    // Moves Mario through the air from (x, y) the way ClimberSystem does, holding direction (-1, 0
+    // or 1). Returns the ticks until he lands, with where in landedX and landedTop, or -1.
+    private int fly(double x, double y, double velocityY, int direction) {
+        for (int tick = 1; tick <= MAX_AIR_TICKS; tick++) {
+            velocityY = Math.min(velocityY + Mario.GRAVITY, ClimberSystem.MAX_FALL_SPEED);
+            double nextY = y + velocityY;
+            double top = platforms.firstTop(x, x + ClimberSystem.BODY_WIDTH,
+                    y + ClimberSystem.BODY_HEIGHT, nextY + ClimberSystem.BODY_HEIGHT);
+            if (!Double.isNaN(top)) {
+                landedX = x;
+                landedTop = top;
+                return tick;
+            }
+            x += direction * ClimberSystem.SPEED;
+            y = nextY;
+        }
+        return -1;
     }
-}
-
-
-//Platform Class
-class Platform implements Entity {
-    private final Image image;
-    private final Point position;
-    private final double width;
-    private final double height;
 
-    public Platform(Point position) {
-        this.image = new Image("res/platform.png");
-        this.position = position;
-        this.width = image.getWidth();
-        this.height = image.getHeight();
+    public boolean supports(int s, double x) {
+        return x > spanLeft[s] - ClimberSystem.BODY_WIDTH && x < spanRight[s];
     }
 
-    @Override
-    public void update() {
+    // The span with this top that Mario stands on at x, or -1.
+    public int spanAt(double x, double top) {
+        for (int s = 0; s < spanTop.length && spanTop[s] <= top; s++) {
+            if (spanTop[s] == top && supports(s, x)) {
+                return s;
+            }
+        }
+        return -1;
     }
 
-    @Override
-    public void render() {
-        image.drawFromTopLeft(position.x, position.y);
+    // Picks where Mario's collider reaches the box: standing on a span if he can, otherwise by
+    // jumping straight up from one. Returns false if neither reaches it.
+    public boolean aim(double x, double y, double width, double height) {
+        goalSpan = -1;
+        for (int s = 0; s < spanTop.length; s++) {
+            double standX = Math.max(spanLeft[s] - ClimberSystem.BODY_WIDTH + 1,
+                    Math.min(spanRight[s] - 1, x + (width - ClimberSystem.BODY_WIDTH) / 2));
+            if (standX >= x + width || standX + ClimberSystem.BODY_WIDTH <= x) {
+                continue;
+            }
+            double top = spanTop[s] - ClimberSystem.BODY_HEIGHT;
+            // the 32x32 collider sits at the top of the 32x40 body
+            double bottom = top + ClimberSystem.BODY_WIDTH;
+            boolean standing = y < bottom && y + height > top;
+            if (standing || (goalSpan < 0 && y < bottom && y + height > top - jumpHeight)) {
+                goalSpan = s;
+                goalX = standX;
+                goalJump = !standing;
+                if (standing) {
+                    break;
+                }
+            }
+        }
+        return goalSpan >= 0;
     }
 
-    public Point getPosition() {
-        return position;
+    public int getGoalSpan() {
+        return goalSpan;
     }
 
-    public double getWidth() {
-        return width;
+    public double getGoalX() {
+        return goalX;
     }
 
-    public double getHeight() {
-        return height;
+    public boolean isGoalJump() {
+        return goalJump;
     }
-}
 
+    // Finds the quickest way from x on span to the goal picked by aim(), and keeps its first
+    // step: where on this span to go and what to do there. Returns false if there's no way.
+    public boolean plan(int span, double x) {
+        if (goalSpan < 0) {
+            return false;
+        }
+        if (span == goalSpan) {
+            setStep(ARRIVE, goalX, 0);
+            return true;
+        }
+        if (++search == 0) {
+            Arrays.fill(seen, 0);
+            search = 1;
+        }
+        heapSize = 0;
+        for (int p = spanPoints[span]; p < spanPoints[span + 1]; p++) {
+            reach(p, Math.abs(pointX[p] - x) / ClimberSystem.SPEED, -1, WALK);
+        }
 
-//Score Manager Class
-class ScoreManager {
-    private int barrelDestroyed;
-    private int barrelJumped;
-    private int bonusTime;
-    private final Set<Barrel> jumpedBarrels;
+        double best = Double.POSITIVE_INFINITY;
+        int bestPoint = -1;
+        while (heapSize > 0 && heapKey[0] < best) {
+            double key = heapKey[0];
+            int p = pop();
+            if (key > cost[p] + remaining(p)) {
+                continue;
+            }
+            if (pointSpan[p] == goalSpan) {
+                if (cost[p] + remaining(p) < best) {
+                    best = cost[p] + remaining(p);
+                    bestPoint = p;
+                }
+                continue;
+            }
+            for (int e = edgeStart[p]; e < edgeStart[p + 1]; e++) {
+                reach(edgeTo[e], cost[p] + edgeCost[e], p, edgeAction[e]);
+            }
+        }
+        if (bestPoint < 0) {
+            return false;
+        }
 
-    public ScoreManager() {
-        jumpedBarrels = new HashSet<>();
+        // the first step is the edge on the way back that leaves the starting span
+        int p = bestPoint;
+        while (pointSpan[cameFrom[p]] != span) {
+            p = cameFrom[p];
+        }
+        int from = cameFrom[p];
+        setStep(cameBy[p], pointX[from], (int) Math.signum(pointX[p] - pointX[from]));
+        return true;
     }
 
-    public void addBarrelDestroyed() {
-        barrelDestroyed++;
+    // Walking the rest of the way is never slower than the goal can be reached.
+    private double remaining(int p) {
+        return Math.abs(pointX[p] - goalX) / ClimberSystem.SPEED;
     }
 
-    public void checkAndAddBarrelJumped(Mario mario, Barrel barrel) {
-        if (!jumpedBarrels.contains(barrel)) {
-            Point marioPos = mario.getPosition();
-            Point barrelPos = barrel.getPosition();
-
-            if (marioPos.y + 32 < barrelPos.y &&
-                    Math.abs(marioPos.x - barrelPos.x) < 40) {
-                barrelJumped++;
-                jumpedBarrels.add(barrel);
-            }
+    private void reach(int p, double newCost, int from, int action) {
+        if (seen[p] == search && cost[p] <= newCost) {
+            return;
         }
+        seen[p] = search;
+        cost[p] = newCost;
+        cameFrom[p] = from;
+        cameBy[p] = action;
+        push(p, newCost + remaining(p));
     }
 
-    public void calculateBonus(int remainingTimeSeconds) {
-        bonusTime = remainingTimeSeconds * 3;
+    private void setStep(int action, double x, int direction) {
+        stepAction = action;
+        stepX = x;
+        stepDirection = direction;
     }
 
-    public int getFinalScore() {
-        return barrelDestroyed * 100 + barrelJumped * 30 + bonusTime;
+    public int getStepAction() {
+        return stepAction;
     }
 
-    public int getBarrelDestroyed() {
-        return barrelDestroyed;
+    public double getStepX() {
+        return stepX;
     }
 
-    public int getBarrelJumped() {
-        return barrelJumped;
+    // Which way a fall or jump goes: -1 left, 1 right.
+    public int getStepDirection() {
+        return stepDirection;
     }
 
-    public int getBonusTime() {
-        return bonusTime;
+    public int getSpanCount() {
+        return spanTop.length;
     }
 
-    public void reset() {
-        barrelDestroyed = 0;
-        barrelJumped = 0;
-        bonusTime = 0;
-        jumpedBarrels.clear();
+    public int getWaypointCount() {
+        return pointX.length;
     }
 
-    public void addBarrelJumped() {
+    public int getEdgeCount() {
+        return edgeTo.length;
     }
-}
-
-
-//Barrel Class
-class Barrel implements Entity {
-    private final Image image;
-    private Point position;
-    private final double width;
-    private final double height;
-    private final double stopY;
-    private boolean falling;
-
-    private double velocityY = 0;
-    private final double GRAVITY = 0.5;
 
-    public Barrel(Point stopPosition, boolean falling, double startY) {
-        this.image = new Image("res/barrel.png");
-        this.width = image.getWidth();
-        this.height = image.getHeight();
-        this.stopY = stopPosition.y;
-        this.falling = falling;
-        this.position = falling ? new Point(stopPosition.x, startY) : new Point(stopPosition.x, stopPosition.y);
+    private void push(int p, double key) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKey[parent] <= key) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapKey[i] = heapKey[parent];
+            i = parent;
+        }
+        heap[i] = p;
+        heapKey[i] = key;
     }
 
-    @Override
-    public void update() {
-        if (falling && position.y < stopY) {
-            velocityY += GRAVITY;
-            position = new Point(position.x, position.y + velocityY);
-
-            if (position.y >= stopY) {
-                position = new Point(position.x, stopY);
-                velocityY = 0;
-                falling = false;
+    private int pop() {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        double key = heapKey[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
             }
+            if (child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+                child++;
+            }
+            if (heapKey[child] >= key) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapKey[i] = heapKey[child];
+            i = child;
         }
+        heap[i] = last;
+        heapKey[i] = key;
+        return top;
     }
+}
 
-    @Override
-    public void render() {
-        image.drawFromTopLeft(position.x, position.y);
+//ParallelStepper Class
+// Runs per-row work over a range, split into chunks on a ForkJoin pool once the range reaches
+// the threshold. Each chunk only writes its own rows, and the per-chunk results are summed, so
+// the outcome doesn't depend on how the range was split or which thread ran what. Called from a
+// pool thread (as under BatchRunner), the chunks stay in that pool.
+class ParallelStepper {
+    // Worlds asking for the same thread count share one pool.
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int chunkSize;
+    private long serialSteps;
+    private long parallelSteps;
+
+    public ParallelStepper(int threads, int threshold, int chunkSize) {
+        this.pool = threads > 0 ? POOLS.computeIfAbsent(threads, ForkJoinPool::new) : ForkJoinPool.commonPool();
+        this.threshold = threshold;
+        this.chunkSize = Math.max(1, chunkSize);
     }
 
-    public Point getPosition() {
-        return position;
+    // Applies task to [from, to) in one or more disjoint chunks and returns the sum of its results.
+    public int sum(int from, int to, IntBinaryOperator task) {
+        if (threshold <= 0 || to - from < threshold || to - from <= chunkSize || pool.getParallelism() < 2) {
+            serialSteps++;
+            return task.applyAsInt(from, to);
+        }
+        parallelSteps++;
+        Chunk root = new Chunk(from, to, task);
+        if (ForkJoinTask.inForkJoinPool()) {
+            root.invoke();
+        } else {
+            pool.invoke(root);
+        }
+        return root.result;
     }
 
-    public double getWidth() {
-        return width;
+    public String summary() {
+        return String.format("%d of %d steps split across threads", parallelSteps, serialSteps + parallelSteps);
     }
 
-    public double getHeight() {
-        return height;
+    // never serialized; RecursiveAction is only Serializable through ForkJoinTask
+    @SuppressWarnings("serial")
+    private final class Chunk extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final IntBinaryOperator task;
+        private int result;
+
+        Chunk(int from, int to, IntBinaryOperator task) {
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                result = task.applyAsInt(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            Chunk left = new Chunk(from, mid, task);
+            Chunk right = new Chunk(mid, to, task);
+            invokeAll(left, right);
+            result = left.result + right.result;
+        }
     }
 }
 
+//BarrelGrid Class
+// Uniform grid broadphase. Barrels are filed under the cell holding their top-left corner and
+// anything outside the play area is clamped into the edge cells. Each barrel remembers its cell
+// and its slot in that cell, so moving or removing one is O(1).
+class BarrelGrid {
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final Cell[] cells;
+    private double maxWidth;
+    private double maxHeight;
+    // scratch for query: the barrels found, and their spawn order packed with where they were found
+    private Barrel[] found = new Barrel[16];
+    private long[] keys = new long[16];
+
+    public BarrelGrid(double width, double height, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(height / cellSize));
+        this.cells = new Cell[columns * rows];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new Cell();
+        }
+    }
 
-// DonkeyKong Class
-class DonkeyKong implements Entity {
-    private final Image image;
-    private Point position;
-    private final double width;
-    private final double height;
-
-    private double targetY;
-    private double velocityY = 0;
-    private final double gravity = 0.2;
-    private final double MAX_FALL_SPEED = 10;
-    private boolean fallingIn = true;
+    public void clear() {
+        for (Cell cell : cells) {
+            for (int i = 0; i < cell.size; i++) {
+                cell.barrels[i].setGridCell(-1);
+                cell.barrels[i].setGridSlot(-1);
+                cell.barrels[i] = null;
+            }
+            cell.size = 0;
+        }
+    }
 
-    public DonkeyKong(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "donkey.x", 100);
-        targetY = GameUtils.getDoubleProperty(props, "donkey.y", 150);
-        this.position = new Point(x, 0);
-        this.image = new Image("res/donkey_kong.png");
-        this.width = image.getWidth();
-        this.height = image.getHeight();
+    public void insert(Barrel barrel) {
+        maxWidth = Math.max(maxWidth, barrel.getWidth());
+        maxHeight = Math.max(maxHeight, barrel.getHeight());
+        add(cellOf(barrel.getX(), barrel.getY()), barrel);
     }
 
-    @Override
-    public void update() {
-        if (fallingIn) {
-            velocityY += gravity;
-            if (velocityY > MAX_FALL_SPEED) {
-                velocityY = MAX_FALL_SPEED;
-            }
+    public void move(Barrel barrel) {
+        int cell = cellOf(barrel.getX(), barrel.getY());
+        if (cell != barrel.getGridCell()) {
+            remove(barrel);
+            add(cell, barrel);
+        }
+    }
 
-            double nextY = position.y + velocityY;
+    // Swaps the last barrel of the cell into the removed one's slot.
+    public void remove(Barrel barrel) {
+        int index = barrel.getGridCell();
+        if (index < 0) {
+            return;
+        }
+        Cell cell = cells[index];
+        int slot = barrel.getGridSlot();
+        if (slot < 0 || slot >= cell.size || cell.barrels[slot] != barrel) {
+            throw new IllegalStateException("Barrel " + barrel.getId() + " is not in slot " + slot
+                    + " of grid cell " + index);
+        }
+        Barrel last = cell.barrels[--cell.size];
+        cell.barrels[slot] = last;
+        last.setGridSlot(slot);
+        cell.barrels[cell.size] = null;
+        barrel.setGridCell(-1);
+        barrel.setGridSlot(-1);
+    }
 
-            if (nextY >= targetY) {
-                nextY = targetY;
-                fallingIn = false;
-                velocityY = 0;
+    // Collects every barrel whose box may overlap the given area, sorted by spawn order so
+    // the result doesn't depend on where the barrels sit in the store.
+    public void query(double minX, double minY, double maxX, double maxY, List<Barrel> out) {
+        out.clear();
+        int fromColumn = column(minX - maxWidth);
+        int toColumn = column(maxX);
+        int fromRow = row(minY - maxHeight);
+        int toRow = row(maxY);
+        int count = 0;
+        for (int r = fromRow; r <= toRow; r++) {
+            for (int c = fromColumn; c <= toColumn; c++) {
+                Cell cell = cells[r * columns + c];
+                if (count + cell.size > found.length) {
+                    int capacity = Math.max(found.length * 2, count + cell.size);
+                    found = Arrays.copyOf(found, capacity);
+                    keys = new long[capacity];
+                }
+                System.arraycopy(cell.barrels, 0, found, count, cell.size);
+                count += cell.size;
             }
+        }
 
-            position = new Point(position.x, nextY);
+        for (int i = 0; i < count; i++) {
+            keys[i] = (long) found[i].getOrder() << 32 | i;
         }
+        Arrays.sort(keys, 0, count);
+        for (int i = 0; i < count; i++) {
+            out.add(found[(int) keys[i]]);
+        }
+        Arrays.fill(found, 0, count, null);
     }
 
-    @Override
-    public void render() {
-        image.drawFromTopLeft(position.x, position.y);
+    private void add(int index, Barrel barrel) {
+        Cell cell = cells[index];
+        if (cell.size == cell.barrels.length) {
+            cell.barrels = Arrays.copyOf(cell.barrels, cell.size * 2);
+        }
+        cell.barrels[cell.size] = barrel;
+        barrel.setGridCell(index);
+        barrel.setGridSlot(cell.size);
+        cell.size++;
     }
 
-    public void reset(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "donkey.x", 100);
-        targetY = GameUtils.getDoubleProperty(props, "donkey.y", 150);
-        position = new Point(x, 0);
-        velocityY = 0;
-        fallingIn = true;
+    private int cellOf(double x, double y) {
+        return row(y) * columns + column(x);
     }
 
-    public Point getPosition() {
-        return position;
+    private int column(double x) {
+        return (int) Math.max(0, Math.min(columns - 1, Math.floor(x / cellSize)));
     }
 
-    public double getWidth() {
-        return width;
+    private int row(double y) {
+        return (int) Math.max(0, Math.min(rows - 1, Math.floor(y / cellSize)));
     }
 
-    public double getHeight() {
-        return height;
+    private static class Cell {
+        Barrel[] barrels = new Barrel[4];
+        int size;
     }
 }
 
 
-// Mario Class
-class Mario implements Entity {
-    private Image leftImage;
-    private Image rightImage;
-    private Image hammerLeftImage;
-    private Image hammerRightImage;
-
-    private Point position;
-    private double speed = 3.5;
-    private double climbSpeed = 2;
-    private double jumpVelocity = -5;
-    private double gravity = 0.2;
-    private double velocityY = 0;
-    private boolean inAir = false;
-    private boolean hasHammer = false;
-    private boolean climbing = false;
-    private boolean movingRight = true;
-    private boolean onPlatform = false;
-    private boolean fallingIn = true;
-    private double targetY;
-
+// DonkeyKong Class
+class DonkeyKong extends EntityView {
+    private static final String IMAGE_FILE = "res/donkey_kong.png";
+    private static final int COMPONENTS = EntityStore.POSITION | EntityStore.VELOCITY | EntityStore.GRAVITY_BODY
+            | EntityStore.COLLIDER | EntityStore.SPRITE | EntityStore.THROWER;
+    private final double gravity = 0.2;
     private final double MAX_FALL_SPEED = 10;
 
-    public Mario(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "mario.start.x", 100);
-        targetY = GameUtils.getDoubleProperty(props, "mario.start.y", 700);
-        this.position = new Point(x, 0);
-
-        leftImage = new Image("res/mario_left.png");
-        rightImage = new Image("res/mario_right.png");
-        hammerLeftImage = new Image("res/mario_hammer_left.png");
-        hammerRightImage = new Image("res/mario_hammer_right.png");
+    public DonkeyKong(EntityStore store, GameConfig config) {
+        super(store, store.create(COMPONENTS));
+        store.setView(index, this);
+        reset(config);
     }
 
-    public void update(Input input, List<Platform> platforms, List<Ladder> ladders) {
-        double nextX = position.x;
-        double nextY = position.y;
-        climbing = false;
-
-        if (fallingIn) {
-            velocityY += gravity;
-            nextY += velocityY;
-            if (nextY >= targetY) {
-                nextY = targetY;
-                fallingIn = false;
-                velocityY = 0;
-            }
-            position = new Point(position.x, nextY);
-            return;
-        }
-
-        if (input.isDown(Keys.LEFT)) {
-            nextX -= speed;
-            movingRight = false;
-        } else if (input.isDown(Keys.RIGHT)) {
-            nextX += speed;
-            movingRight = true;
-        }
+    // Drops in from the top of the screen to the configured height.
+    public void reset(GameConfig config) {
+        int i = index;
+        double[] size = IOUtils.readImageSize(IMAGE_FILE);
+        store.x[i] = config.getDonkeyX();
+        store.y[i] = 0;
+        store.previousX[i] = store.x[i];
+        store.previousY[i] = store.y[i];
+        store.velocityY[i] = 0;
+        store.gravity[i] = gravity;
+        store.maxFallSpeed[i] = MAX_FALL_SPEED;
+        store.restY[i] = config.getDonkeyY();
+        store.width[i] = size[0];
+        store.height[i] = size[1];
+        store.sprite[i] = EntityStore.sprite(IMAGE_FILE);
+        store.timer[i] = config.getFirstThrowDelay();
+        store.flags[i] = EntityStore.DROPPING;
+    }
 
-        for (Ladder ladder : ladders) {
-            Point ladderPos = ladder.getPosition();
-            boolean onLadder = GameUtils.isColliding(position, 32, 40, ladderPos, ladder.getWidth(), ladder.getHeight());
+    // True once per throw; the world spawns the barrel.
+    public boolean takeThrow() {
+        boolean pending = store.is(index, EntityStore.THROW_PENDING);
+        store.flags[index] &= ~EntityStore.THROW_PENDING;
+        return pending;
+    }
 
-            Point downCheckPos = new Point(position.x, position.y + 5);
-            boolean canClimbDown = GameUtils.isColliding(downCheckPos, 32, 40, ladderPos, ladder.getWidth(), ladder.getHeight());
+    public Point getPosition() {
+        return new Point(getX(), getY());
+    }
+}
 
-            if (onLadder || (input.isDown(Keys.DOWN) && canClimbDown)) {
-                if (input.isDown(Keys.UP)) {
-                    nextY -= climbSpeed;
-                    climbing = true;
-                } else if (input.isDown(Keys.DOWN)) {
-                    double ladderBottom = ladderPos.y + ladder.getHeight();
-                    if (position.y + 40 < ladderBottom) {
-                        nextY += climbSpeed;
-                        if (nextY + 40 > ladderBottom) {
-                            nextY = ladderBottom - 40;
-                        }
-                        climbing = true;
-                    }
-                }
 
-                break;
-            }
-        }
+// Mario Class
+class Mario extends EntityView {
+    private static final String LEFT_IMAGE = "res/mario_left.png";
+    private static final String RIGHT_IMAGE = "res/mario_right.png";
+    private static final String HAMMER_LEFT_IMAGE = "res/mario_hammer_left.png";
+    private static final String HAMMER_RIGHT_IMAGE = "res/mario_hammer_right.png";
+    private static final int LEFT = EntityStore.sprite(LEFT_IMAGE);
+    private static final int RIGHT = EntityStore.sprite(RIGHT_IMAGE);
+    private static final int HAMMER_LEFT = EntityStore.sprite(HAMMER_LEFT_IMAGE);
+    private static final int HAMMER_RIGHT = EntityStore.sprite(HAMMER_RIGHT_IMAGE);
+    private static final int COMPONENTS = EntityStore.POSITION | EntityStore.VELOCITY | EntityStore.GRAVITY_BODY
+            | EntityStore.COLLIDER | EntityStore.SPRITE | EntityStore.CLIMBER;
+
+    static final double GRAVITY = 0.2;
+
+    public Mario(EntityStore store, GameConfig config) {
+        super(store, store.create(COMPONENTS));
+        store.setView(index, this);
+        reset(config);
+    }
 
-        if (!climbing) {
-            velocityY += gravity;
-            if (velocityY > MAX_FALL_SPEED) {
-                velocityY = MAX_FALL_SPEED;
-            }
-            nextY += velocityY;
+    // Picks the climber's sprite from the way it faces and whether it holds the hammer.
+    static void pickSprite(EntityStore store, int i) {
+        boolean right = store.is(i, EntityStore.FACING_RIGHT);
+        if (store.is(i, EntityStore.HAS_HAMMER)) {
+            store.sprite[i] = right ? HAMMER_RIGHT : HAMMER_LEFT;
+            store.spriteOffsetY[i] = -20;
         } else {
-            velocityY = 0;
+            store.sprite[i] = right ? RIGHT : LEFT;
+            store.spriteOffsetY[i] = 0;
         }
+    }
 
-        onPlatform = false;
-        for (Platform p : platforms) {
-            boolean standingOn = position.y + 40 <= p.getPosition().y &&
-                    nextY + 40 >= p.getPosition().y &&
-                    position.x + 32 > p.getPosition().x &&
-                    position.x < p.getPosition().x + p.getWidth();
-
-            if (standingOn) {
-                onPlatform = true;
-                if (!climbing) {
-                    nextY = p.getPosition().y - 40;
-                    inAir = false;
-                    velocityY = 0;
-                }
-            }
-        }
+    // Drops in from y = 600 to the start position.
+    public void reset(GameConfig config) {
+        int i = index;
+        store.x[i] = config.getMarioStartX();
+        store.y[i] = 600;
+        store.previousX[i] = store.x[i];
+        store.previousY[i] = store.y[i];
+        store.velocityY[i] = 0;
+        store.gravity[i] = GRAVITY;
+        store.maxFallSpeed[i] = Double.POSITIVE_INFINITY;
+        store.restY[i] = config.getMarioStartY();
+        store.width[i] = 32;
+        store.height[i] = 32;
+        store.flags[i] = EntityStore.DROPPING | EntityStore.FACING_RIGHT;
+        pickSprite(store, i);
+    }
 
-        if (input.wasPressed(Keys.SPACE) && onPlatform) {
-            velocityY = jumpVelocity;
-            inAir = true;
-        }
-        position = new Point(nextX, nextY);
+    public void collectHammer() {
+        store.flags[index] |= EntityStore.HAS_HAMMER;
+        pickSprite(store, index);
     }
 
-    @Override
-    public void update() {
+    public boolean hasHammer() {
+        return store.is(index, EntityStore.HAS_HAMMER);
     }
 
-    public void render() {
-        Image toDraw;
-        if (hasHammer) {
-            toDraw = movingRight ? hammerRightImage : hammerLeftImage;
-        } else {
-            toDraw = movingRight ? rightImage : leftImage;
-        }
-        float renderOffsetY = hasHammer ? -20 : 0;
-        toDraw.drawFromTopLeft(position.x, position.y + renderOffsetY);
+    public boolean isOnPlatform() {
+        return store.is(index, EntityStore.ON_PLATFORM);
+    }
 
+    public boolean isClimbing() {
+        return store.is(index, EntityStore.CLIMBING);
     }
 
-    public void reset(Properties props) {
-        double x = GameUtils.getDoubleProperty(props, "mario.start.x", 100);
-        targetY = GameUtils.getDoubleProperty(props, "mario.start.y", 700);
-        position = new Point(x, 600);
-        velocityY = 0;
-        inAir = false;
-        hasHammer = false;
-        climbing = false;
-        movingRight = true;
-        fallingIn = true;
+    // Jumping, or dropping in at the start of a game.
+    public boolean isInAir() {
+        return store.is(index, EntityStore.IN_AIR | EntityStore.DROPPING);
     }
 
-    public void collectHammer() {
-        hasHammer = true;
+    public Point getPosition() {
+        return new Point(getX(), getY());
     }
 
-    public boolean hasHammer() {
-        return hasHammer;
+    // Where Mario is drawn, alpha of the way from the previous tick to this one.
+    public double getRenderX(double alpha) {
+        return GameUtils.lerp(store.previousX[index], store.x[index], alpha);
     }
 
-    public Point getPosition() {
-        return position;
+    public double getRenderY(double alpha) {
+        return GameUtils.lerp(store.previousY[index], store.y[index], alpha);
     }
 }
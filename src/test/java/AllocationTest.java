@@ -0,0 +1,68 @@
+import bagel.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//AllocationTest Class
+// Plays a scripted loop of walking, jumping and climbing for long enough that the JIT has settled,
+// then checks the gameplay loop allocates (next to) nothing per tick.
+class AllocationTest {
+    private static final int WARM_UP_TICKS = 50_000;
+    private static final int MEASURED_TICKS = 20_000;
+    // A quarter of a byte per tick leaves room for one-offs such as a deoptimisation or a reset after
+    // Mario is hit; the loop measures about 800 bytes in all, and a single Point a tick would be 24
+    private static final long ALLOWED_BYTES = MEASURED_TICKS / 4;
+
+    @Test
+    void gameplayLoopDoesNotAllocate() {
+        Properties props = IOUtils.readPropertiesFile("res/app.properties");
+        props.setProperty("gamePlay.maxFrames", Integer.toString(Integer.MAX_VALUE));
+        GameWorld world = new GameWorld(GameConfig.from(props));
+        ScriptedInput input = new ScriptedInput(script(WARM_UP_TICKS + MEASURED_TICKS));
+
+        play(world, input, WARM_UP_TICKS);
+        long before = HeadlessSimulation.allocatedBytes();
+        play(world, input, MEASURED_TICKS);
+        long allocated = HeadlessSimulation.allocatedBytes() - before;
+
+        assertTrue(allocated <= ALLOWED_BYTES,
+                "allocated " + allocated + " bytes in " + MEASURED_TICKS + " ticks, allowed " + ALLOWED_BYTES);
+    }
+
+    private static void play(GameWorld world, ScriptedInput input, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            input.advance();
+            if (!world.update(input)) {
+                world.reset();
+            }
+        }
+    }
+
+    // Right to the first ladder and up it, jumping on the way, then back down and left again.
+    private static int[] script(int length) {
+        int right = KeyMask.bit(Keys.RIGHT);
+        int left = KeyMask.bit(Keys.LEFT);
+        int up = KeyMask.bit(Keys.UP);
+        int down = KeyMask.bit(Keys.DOWN);
+        int space = KeyMask.bit(Keys.SPACE);
+        int[] loop = new int[600];
+        for (int f = 0; f < loop.length; f++) {
+            if (f < 200) {
+                loop[f] = right | (f % 50 == 0 ? space : 0);
+            } else if (f < 300) {
+                loop[f] = up;
+            } else if (f < 400) {
+                loop[f] = down;
+            } else {
+                loop[f] = left | (f % 50 == 0 ? space : 0);
+            }
+        }
+        int[] masks = new int[length];
+        for (int f = 0; f < length; f++) {
+            masks[f] = loop[f % loop.length];
+        }
+        return masks;
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//BarrelGridTest Class
+// Checks the broadphase against a brute-force box test while barrels move, leave and come back.
+class BarrelGridTest {
+    private static final double WIDTH = 1024;
+    private static final double HEIGHT = 768;
+
+    @Test
+    void queriesMatchBruteForce() {
+        Random random = new Random(7);
+        EntityStore store = new EntityStore(500);
+        BarrelGrid grid = new BarrelGrid(WIDTH, HEIGHT, 64);
+        Barrel[] barrels = new Barrel[500];
+        boolean[] inGrid = new boolean[barrels.length];
+        List<Integer> orders = new ArrayList<>();
+        for (int i = 0; i < barrels.length; i++) {
+            orders.add(i);
+        }
+        Collections.shuffle(orders, random);
+        for (int i = 0; i < barrels.length; i++) {
+            // spawn orders out of step with the array, and some barrels off the play area
+            barrels[i] = randomBarrel(store, random, i, orders.get(i));
+            grid.insert(barrels[i]);
+            inGrid[i] = true;
+        }
+
+        List<Barrel> result = new ArrayList<>();
+        for (int round = 0; round < 2_000; round++) {
+            int i = random.nextInt(barrels.length);
+            Barrel barrel = barrels[i];
+            if (!inGrid[i]) {
+                // comes back somewhere else
+                barrels[i] = randomBarrel(store, random, i, barrel.getOrder());
+                grid.insert(barrels[i]);
+                inGrid[i] = true;
+            } else if (random.nextInt(4) == 0) {
+                grid.remove(barrel);
+                inGrid[i] = false;
+            } else {
+                store.x[barrel.getIndex()] = randomX(random);
+                store.y[barrel.getIndex()] = randomY(random);
+                grid.move(barrel);
+            }
+
+            double minX = randomX(random);
+            double minY = randomY(random);
+            double maxX = minX + random.nextInt(300);
+            double maxY = minY + random.nextInt(300);
+            grid.query(minX, minY, maxX, maxY, result);
+
+            for (int j = 1; j < result.size(); j++) {
+                assertTrue(result.get(j - 1).getOrder() <= result.get(j).getOrder(), "not in spawn order");
+            }
+            List<Barrel> overlapping = new ArrayList<>();
+            for (Barrel candidate : result) {
+                assertTrue(inGrid[candidate.getId()], "removed barrel " + candidate.getId() + " returned");
+                if (overlaps(candidate, minX, minY, maxX, maxY)) {
+                    overlapping.add(candidate);
+                }
+            }
+            List<Barrel> expected = new ArrayList<>();
+            for (int j = 0; j < barrels.length; j++) {
+                if (inGrid[j] && overlaps(barrels[j], minX, minY, maxX, maxY)) {
+                    expected.add(barrels[j]);
+                }
+            }
+            expected.sort((a, b) -> Integer.compare(a.getOrder(), b.getOrder()));
+            assertEquals(orders(expected), orders(overlapping), "round " + round);
+        }
+    }
+
+    @Test
+    void removingABarrelFromTheWrongSlotFails() {
+        EntityStore store = new EntityStore(2);
+        BarrelGrid grid = new BarrelGrid(WIDTH, HEIGHT, 64);
+        Barrel first = Barrel.add(store, 0, 10, 10, false, 0, 0);
+        Barrel second = Barrel.add(store, 1, 10, 10, false, 0, 1);
+        grid.insert(first);
+        grid.insert(second);
+        first.setGridSlot(1);
+        assertThrows(IllegalStateException.class, () -> grid.remove(first));
+    }
+
+    // The barrel's id is its index in the test's array.
+    private static Barrel randomBarrel(EntityStore store, Random random, int id, int order) {
+        return Barrel.add(store, id, randomX(random), randomY(random), false, 0, order);
+    }
+
+    private static double randomX(Random random) {
+        return random.nextInt((int) WIDTH + 200) - 100;
+    }
+
+    private static double randomY(Random random) {
+        return random.nextInt((int) HEIGHT + 200) - 100;
+    }
+
+    private static boolean overlaps(Barrel barrel, double minX, double minY, double maxX, double maxY) {
+        return barrel.getX() + barrel.getWidth() >= minX && barrel.getX() <= maxX
+                && barrel.getY() + barrel.getHeight() >= minY && barrel.getY() <= maxY;
+    }
+
+    private static List<Integer> orders(List<Barrel> barrels) {
+        List<Integer> orders = new ArrayList<>();
+        for (Barrel barrel : barrels) {
+            orders.add(barrel.getOrder());
+        }
+        return orders;
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+//GeometryIndexTest Class
+// Compares the index's queries with a linear scan over the same boxes.
+class GeometryIndexTest {
+    private static final int BOXES = 300;
+
+    @Test
+    void queriesMatchLinearScan() {
+        Random random = new Random(11);
+        double[] x = new double[BOXES];
+        double[] y = new double[BOXES];
+        double[] width = new double[BOXES];
+        double[] height = new double[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            // few distinct tops so rows hold many boxes, some overlapping each other
+            x[i] = random.nextInt(1000);
+            y[i] = 40 * random.nextInt(20);
+            width[i] = 10 + random.nextInt(200);
+            height[i] = 5 + random.nextInt(60);
+        }
+        GeometryIndex index = new GeometryIndex(x, y, width, height);
+
+        for (int query = 0; query < 5_000; query++) {
+            double fromX = random.nextInt(1100) - 50;
+            double toX = fromX + random.nextInt(100);
+            double minTop = random.nextInt(800) - 20.5;
+            double maxTop = minTop + random.nextInt(200);
+            assertEquals(firstTop(x, y, width, fromX, toX, minTop, maxTop),
+                    index.firstTop(fromX, toX, minTop, maxTop), "firstTop, query " + query);
+
+            double boxX = random.nextInt(1100) - 50;
+            double boxY = random.nextInt(850) - 50 + random.nextDouble();
+            double boxWidth = 1 + random.nextInt(60);
+            double boxHeight = 1 + random.nextInt(60);
+            assertEquals(firstColliding(x, y, width, height, boxX, boxY, boxWidth, boxHeight),
+                    index.firstColliding(boxX, boxY, boxWidth, boxHeight), "firstColliding, query " + query);
+        }
+    }
+
+    @Test
+    void emptyIndexFindsNothing() {
+        GeometryIndex index = new GeometryIndex(new double[0], new double[0], new double[0], new double[0]);
+        assertEquals(Double.NaN, index.firstTop(0, 100, 0, 100));
+        assertEquals(-1, index.firstColliding(0, 0, 100, 100));
+        assertEquals(Double.NEGATIVE_INFINITY, index.getLowestTop());
+    }
+
+    private static double firstTop(double[] x, double[] y, double[] width,
+                                   double fromX, double toX, double minTop, double maxTop) {
+        double first = Double.NaN;
+        for (int i = 0; i < x.length; i++) {
+            if (y[i] >= minTop && y[i] <= maxTop && x[i] < toX && x[i] + width[i] > fromX
+                    && (Double.isNaN(first) || y[i] < first)) {
+                first = y[i];
+            }
+        }
+        return first;
+    }
+
+    private static int firstColliding(double[] x, double[] y, double[] width, double[] height,
+                                      double boxX, double boxY, double boxWidth, double boxHeight) {
+        for (int i = 0; i < x.length; i++) {
+            if (GameUtils.isColliding(boxX, boxY, boxWidth, boxHeight, x[i], y[i], width[i], height[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
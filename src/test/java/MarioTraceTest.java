@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//MarioTraceTest Class
+// Replays input scripts and checks Mario after every frame against traces recorded from the original
+// game, so walking, jumping, climbing and landing stay frame-for-frame the same. A trace line is
+// "x y flags" (H hammer, A in the air, C climbing, P on a platform); "end" follows the frame the game ended.
+class MarioTraceTest {
+    private static final Path TRACES = Paths.get("src/test/resources/traces");
+    private static final String[] SCRIPTS = {"h5", "h21", "s2", "s26", "t38", "s32"};
+
+    @Test
+    void movementMatchesRecordedTraces() throws IOException {
+        for (String script : SCRIPTS) {
+            replay(script);
+        }
+    }
+
+    private static void replay(String script) throws IOException {
+        // the traces were recorded before Donkey Kong threw barrels
+        Properties props = IOUtils.readPropertiesFile("res/app.properties");
+        props.setProperty("donkey.throw.interval", "0");
+        GameWorld world = new GameWorld(GameConfig.from(props));
+        ScriptedInput input = ScriptedInput.fromFile(TRACES.resolve(script + ".txt").toString());
+        List<String> trace = Files.readAllLines(TRACES.resolve(script + ".trace"));
+
+        boolean running = true;
+        for (int frame = 0; frame < trace.size(); frame++) {
+            if (trace.get(frame).equals("end")) {
+                assertFalse(running, script + ": game still running after frame " + (frame - 1));
+                return;
+            }
+            assertTrue(running, script + ": game ended before frame " + frame);
+            input.advance();
+            running = world.update(input);
+            assertEquals(trace.get(frame), describe(world.getMario()), script + " frame " + frame);
+        }
+    }
+
+    private static String describe(Mario mario) {
+        return mario.getPosition().x + " " + mario.getPosition().y + " "
+                + (mario.hasHammer() ? 'H' : '-')
+                + (mario.isInAir() ? 'A' : '-')
+                + (mario.isClimbing() ? 'C' : '-')
+                + (mario.isOnPlatform() ? 'P' : '-');
+    }
+}
@@ -0,0 +1,93 @@
+import bagel.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//ParallelStepperTest Class
+// Plays the same input on a serial world and on one that splits every step into tiny chunks
+// across threads, and checks their snapshots stay byte for byte the same.
+class ParallelStepperTest {
+    private static final int BARRELS = 2_000;
+    private static final int TICKS = 3_000;
+    private static final int COMPARE_EVERY = 10;
+
+    @Test
+    void parallelStepsMatchSerialSteps() {
+        GameWorld serial = new GameWorld(GameConfig.from(props(0, 2048, 0)));
+        GameWorld parallel = new GameWorld(GameConfig.from(props(2, 2, 4)));
+        ScriptedInput input = new ScriptedInput(script(TICKS));
+        ByteBuffer serialState = ByteBuffer.allocate(1 << 20);
+        ByteBuffer parallelState = ByteBuffer.allocate(1 << 20);
+
+        for (int tick = 1; tick <= TICKS; tick++) {
+            input.advance();
+            if (!serial.update(input)) {
+                serial.reset();
+            }
+            if (!parallel.update(input)) {
+                parallel.reset();
+            }
+            if (tick % COMPARE_EVERY == 0) {
+                assertArrayEquals(state(serial, serialState), state(parallel, parallelState), "tick " + tick);
+            }
+        }
+        assertTrue(parallel.summary().matches(".* [1-9]\\d* of \\d+ steps split across threads"), parallel.summary());
+    }
+
+    // The level crowded with barrels right of Mario's start, some of them still falling into
+    // place, and Donkey Kong throwing as usual.
+    private static Properties props(int threshold, int chunkSize, int threads) {
+        Properties props = IOUtils.readPropertiesFile("res/app.properties");
+        props.setProperty("gamePlay.maxFrames", Integer.toString(Integer.MAX_VALUE));
+        props.setProperty("gamePlay.parallel.threshold", Integer.toString(threshold));
+        props.setProperty("gamePlay.parallel.chunkSize", Integer.toString(chunkSize));
+        props.setProperty("gamePlay.parallel.threads", Integer.toString(threads));
+        // the hammer where Mario picks it up straight away, so he smashes barrels instead of dying
+        props.setProperty("hammer.x", "150");
+        props.setProperty("hammer.y", "700");
+        Random random = new Random(19);
+        props.setProperty("barrel.count", Integer.toString(BARRELS));
+        for (int i = 1; i <= BARRELS; i++) {
+            int x = 250 + random.nextInt(750);
+            int y = 100 + random.nextInt(600);
+            props.setProperty("barrel." + i, random.nextBoolean() ? x + "," + y : x + "," + y + "," + random.nextInt(y));
+        }
+        return props;
+    }
+
+    private static byte[] state(GameWorld world, ByteBuffer buffer) {
+        buffer.clear();
+        world.writeState(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // Right to the first ladder and up it into the barrels, jumping on the way, then back down
+    // and left again.
+    private static int[] script(int length) {
+        int right = KeyMask.bit(Keys.RIGHT);
+        int left = KeyMask.bit(Keys.LEFT);
+        int up = KeyMask.bit(Keys.UP);
+        int down = KeyMask.bit(Keys.DOWN);
+        int space = KeyMask.bit(Keys.SPACE);
+        int[] masks = new int[length];
+        for (int f = 0; f < length; f++) {
+            int loop = f % 720;
+            if (loop < 240) {
+                masks[f] = right | (loop % 60 == 0 ? space : 0);
+            } else if (loop < 360) {
+                masks[f] = up;
+            } else if (loop < 480) {
+                masks[f] = down;
+            } else {
+                masks[f] = left | (loop % 60 == 0 ? space : 0);
+            }
+        }
+        return masks;
+    }
+}
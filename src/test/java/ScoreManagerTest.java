@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//ScoreManagerTest Class
+class ScoreManagerTest {
+    @Test
+    void barrelScoresOnceUntilForgotten() {
+        ScoreManager scores = new ScoreManager();
+        scores.addBarrelJumped(70);
+        scores.addBarrelJumped(70);
+        scores.addBarrelDestroyed();
+        assertTrue(scores.isJumped(70));
+        assertEquals(130, scores.getFinalScore());
+
+        scores.forget(70);
+        assertFalse(scores.isJumped(70));
+        assertEquals(130, scores.getFinalScore());
+
+        // the next barrel given the id scores again
+        scores.addBarrelJumped(70);
+        assertEquals(160, scores.getFinalScore());
+        assertEquals(2, scores.getBarrelJumped());
+    }
+
+    @Test
+    void stateRoundTrips() {
+        ScoreManager scores = new ScoreManager();
+        scores.addBarrelJumped(5);
+        scores.addBarrelJumped(200);
+        scores.addBarrelDestroyed();
+        scores.calculateBonus(10);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        scores.writeState(buffer);
+
+        ScoreManager copy = new ScoreManager();
+        copy.addBarrelJumped(6);
+        buffer.flip();
+        copy.readState(buffer);
+        assertEquals(scores.getFinalScore(), copy.getFinalScore());
+        assertEquals(scores.getBonusTime(), copy.getBonusTime());
+        assertEquals(scores.getBarrelDestroyed(), copy.getBarrelDestroyed());
+        assertTrue(copy.isJumped(5) && copy.isJumped(200));
+        assertFalse(copy.isJumped(6));
+    }
+
+    // Donkey Kong throws about 400 barrels that roll out and are recycled while Mario stands still,
+    // so without reuse the ids would climb into the hundreds.
+    @Test
+    void barrelIdsStayBelowTheMostBarrelsAlive() {
+        Properties props = IOUtils.readPropertiesFile("res/app.properties");
+        props.setProperty("gamePlay.maxFrames", Integer.toString(Integer.MAX_VALUE));
+        props.setProperty("donkey.throw.interval", "20");
+        GameConfig config = GameConfig.from(props);
+        GameWorld world = new GameWorld(config);
+        ScriptedInput idle = new ScriptedInput(new int[0]);
+        int bound = config.getBarrelPoolSize() + config.getBarrelX().length;
+        for (int tick = 0; tick < 30_000; tick++) {
+            idle.advance();
+            if (!world.update(idle)) {
+                world.reset();
+            }
+            for (int i = 0; i < world.getBarrelCount(); i++) {
+                assertTrue(world.getBarrel(i).getId() < bound, "barrel id " + world.getBarrel(i).getId());
+            }
+        }
+    }
+}
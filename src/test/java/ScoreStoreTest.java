@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//ScoreStoreTest Class
+// Appends enough scores to write and merge several runs, checking ranks and the leaderboard
+// against a plain list, across reopens and a lost run file.
+class ScoreStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void matchesAPlainListAcrossMergesAndReopens() throws IOException {
+        Path logFile = directory.resolve("scores.csv");
+        Random random = new Random(3);
+        List<Integer> scores = new ArrayList<>();
+
+        for (int session = 0; session < 3; session++) {
+            try (ScoreStore store = ScoreStore.open(logFile, 4096)) {
+                check(store, scores, random);
+                for (int i = 0; i < 25_000; i++) {
+                    int score = random.nextInt(5_000);
+                    store.append(score, false, 0);
+                    scores.add(score);
+                    if (i % 5_000 == 0) {
+                        check(store, scores, random);
+                    }
+                }
+                check(store, scores, random);
+            }
+        }
+        // 75k scores in 16k batches; without tiering this would be a single index rewritten each time
+        assertTrue(runFiles(directory) <= 4, runFiles(directory) + " run files");
+
+        // losing the newest run only means reading its stretch of the log back in
+        Path newest;
+        try (Stream<Path> files = Files.list(directory)) {
+            newest = files.filter(file -> file.getFileName().toString().startsWith("scores.csv.idx."))
+                    .max((a, b) -> Long.compare(from(a), from(b))).get();
+        }
+        Files.delete(newest);
+        try (ScoreStore store = ScoreStore.open(logFile, 4096)) {
+            check(store, scores, random);
+        }
+    }
+
+    @Test
+    void refusesNegativeScores() throws IOException {
+        Path logFile = directory.resolve("scores.csv");
+        try (ScoreStore store = ScoreStore.open(logFile, 1)) {
+            assertThrows(IllegalArgumentException.class, () -> {
+                try {
+                    store.append(-1, false, 0);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            assertEquals(0, store.size());
+        }
+    }
+
+    private static void check(ScoreStore store, List<Integer> scores, Random random) {
+        assertEquals(scores.size(), store.size());
+        int[] sorted = scores.stream().sorted((a, b) -> b - a).mapToInt(Integer::intValue).toArray();
+        int[] expected = new int[Math.min(10, sorted.length)];
+        System.arraycopy(sorted, 0, expected, 0, expected.length);
+        assertArrayEquals(expected, store.top(10));
+        for (int i = 0; i < 20; i++) {
+            int score = random.nextInt(5_100) - 50;
+            int above = 0;
+            for (int s : scores) {
+                if (s > score) {
+                    above++;
+                }
+            }
+            assertEquals(1 + above, store.rank(score), "rank of " + score);
+        }
+    }
+
+    private static long runFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("scores.csv.idx.")).count();
+        }
+    }
+
+    private static long from(Path runFile) {
+        String name = runFile.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+}